@@ -0,0 +1,75 @@
+package com.austinv11.persistence.benchmarks;
+
+public class BenchObject implements IBenchObject {
+	
+	private volatile String name;
+	private volatile int count;
+	private volatile long timestamp;
+	private volatile double score;
+	private volatile boolean active;
+	
+	public BenchObject() {}
+	
+	public BenchObject(int i) {
+		this.name = "object-" + i;
+		this.count = i;
+		this.timestamp = 1_500_000_000_000L + i;
+		this.score = i / 3.0;
+		this.active = i % 2 == 0;
+	}
+	
+	@Override
+	public String getName() {
+		return name;
+	}
+	
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	@Override
+	public int getCount() {
+		return count;
+	}
+	
+	@Override
+	public void setCount(int count) {
+		this.count = count;
+	}
+	
+	@Override
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	@Override
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	
+	@Override
+	public double getScore() {
+		return score;
+	}
+	
+	@Override
+	public void setScore(double score) {
+		this.score = score;
+	}
+	
+	@Override
+	public boolean getActive() {
+		return active;
+	}
+	
+	@Override
+	public void setActive(boolean active) {
+		this.active = active;
+	}
+	
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+}
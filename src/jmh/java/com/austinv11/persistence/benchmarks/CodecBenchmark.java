@@ -0,0 +1,71 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.Codec;
+import com.austinv11.persistence.impl.LZ4Codec;
+import com.austinv11.persistence.impl.NoOpCodec;
+import com.austinv11.persistence.impl.ZstdCodec;
+import com.austinv11.persistence.internal.PackerKt;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks compressing and decompressing packed frames with each codec. The legacy LZ4 frame format (used with peers 
+ * which didn't negotiate a codec) is benchmarked as "lz4-frame".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+	
+	@Param({"lz4", "lz4-frame", "zstd", "none"})
+	public String codec;
+	
+	@Param({"10", "1000"})
+	public int objects;
+	
+	private Codec instance;
+	private byte[] frame;
+	private byte[] compressed;
+	
+	@Setup
+	public void setup() throws IOException {
+		frame = Fixtures.frame(Fixtures.manager(), objects);
+		switch (codec) {
+			case "lz4":
+				instance = new LZ4Codec();
+				break;
+			case "zstd":
+				instance = new ZstdCodec();
+				break;
+			case "none":
+				instance = new NoOpCodec();
+				break;
+		}
+		compressed = compress();
+	}
+	
+	@Benchmark
+	public byte[] compress() throws IOException {
+		if (instance != null)
+			return instance.compress(frame);
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (LZ4FrameOutputStream lz4 = new LZ4FrameOutputStream(output, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB)) {
+			lz4.write(frame);
+		}
+		return output.toByteArray();
+	}
+	
+	@Benchmark
+	public byte[] decompress() {
+		if (instance != null)
+			return instance.decompress(compressed);
+		
+		return PackerKt.decompress(ByteBuffer.wrap(compressed));
+	}
+}
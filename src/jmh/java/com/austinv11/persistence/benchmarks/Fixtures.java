@@ -0,0 +1,66 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.PersistenceUtils;
+import com.austinv11.persistence.internal.InitializeValueWrapper;
+import com.austinv11.persistence.internal.MessageId;
+import com.austinv11.persistence.internal.ObjectData;
+import com.austinv11.persistence.internal.PackerKt;
+import com.austinv11.persistence.internal.Payload;
+
+import java.util.Collections;
+
+/**
+ * Shared setup for the benchmarks.
+ */
+final class Fixtures {
+	
+	private Fixtures() {}
+	
+	/**
+	 * Creates a manager with a store for {@link BenchObject}s, its server listens on an ephemeral port so benchmarks 
+	 * can run side by side.
+	 */
+	static PersistenceManager manager() {
+		PersistenceManager manager = new PersistenceManager().setServerPort(0).setHeartbeatInterval(0);
+		manager.storeFor(BenchObject.class);
+		return manager;
+	}
+	
+	static Payload payload(PersistenceManager manager, String op) {
+		BenchObject object = new BenchObject(42);
+		long time = System.currentTimeMillis();
+		long hash = manager.generateHash(object);
+		MessageId id = new MessageId(1, 1);
+		ObjectData data = PersistenceUtils.map(object, manager);
+		switch (op) {
+			case "PING":
+				return new Payload.Ping(System.nanoTime());
+			case "CREATION":
+				return new Payload.Creation(time, data, hash, id);
+			case "CHANGE":
+				return new Payload.Change(time, data.only("count"), hash, hash, id);
+			case "REMOVAL":
+				return new Payload.Removal(time, hash, id);
+			case "INITIALIZE":
+				Object[] objects = new Object[100];
+				for (int i = 0; i < objects.length; i++) 
+					objects[i] = new BenchObject(i);
+				return new Payload.Initialize(time, new InitializeValueWrapper(objects, false), id);
+			default:
+				throw new IllegalArgumentException("Unknown op " + op);
+		}
+	}
+	
+	/**
+	 * Packs an INITIALIZE payload of the provided number of objects, this is representative of the frames which are 
+	 * compressed and encrypted.
+	 */
+	static byte[] frame(PersistenceManager manager, int objects) {
+		Object[] values = new Object[objects];
+		for (int i = 0; i < values.length; i++)
+			values[i] = new BenchObject(i);
+		Payload payload = new Payload.Initialize(System.currentTimeMillis(), new InitializeValueWrapper(values, false), null);
+		return PackerKt.pack(manager, payload, Collections.emptySet(), null);
+	}
+}
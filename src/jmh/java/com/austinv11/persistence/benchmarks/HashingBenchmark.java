@@ -0,0 +1,42 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.PersistenceUtils;
+import com.austinv11.persistence.Property;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks hashing objects and matching their properties, which happens for every insert and mutation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HashingBenchmark {
+	
+	private PersistenceManager manager;
+	private BenchObject object;
+	
+	@Setup
+	public void setup() {
+		manager = new PersistenceManager();
+		object = new BenchObject(42);
+	}
+	
+	@Benchmark
+	public long generateHash() {
+		return manager.generateHash(object);
+	}
+	
+	@Benchmark
+	public List<Property<?>> matchProperties() {
+		return PersistenceUtils.matchProperties(manager, BenchObject.class);
+	}
+	
+	@Benchmark
+	public List<Property<?>> matchBoundProperties() {
+		return PersistenceUtils.matchProperties(manager, object, BenchObject.class);
+	}
+}
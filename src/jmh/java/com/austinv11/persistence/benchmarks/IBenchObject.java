@@ -0,0 +1,27 @@
+package com.austinv11.persistence.benchmarks;
+
+/**
+ * A persistable object with a mix of property types.
+ */
+public interface IBenchObject {
+	
+	String getName();
+	
+	void setName(String name);
+	
+	int getCount();
+	
+	void setCount(int count);
+	
+	long getTimestamp();
+	
+	void setTimestamp(long timestamp);
+	
+	double getScore();
+	
+	void setScore(double score);
+	
+	boolean getActive();
+	
+	void setActive(boolean active);
+}
@@ -0,0 +1,49 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.PersistenceUtils;
+import com.austinv11.persistence.internal.ClassDecoder;
+import com.austinv11.persistence.internal.DecodersKt;
+import com.austinv11.persistence.internal.ObjectData;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks converting objects to property maps and back (what {@code Any.map} and {@code mapValues} do).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MappingBenchmark {
+	
+	private PersistenceManager manager;
+	private BenchObject object;
+	private Map<String, Object> values;
+	private ClassDecoder decoder;
+	
+	@Setup
+	public void setup() {
+		manager = Fixtures.manager();
+		object = new BenchObject(42);
+		values = new HashMap<>(PersistenceUtils.map(object, manager));
+		decoder = DecodersKt.decoderFor(manager, BenchObject.class);
+	}
+	
+	@Benchmark
+	public ObjectData map() {
+		return PersistenceUtils.map(object, manager);
+	}
+	
+	@Benchmark
+	public Object mapValues() {
+		return decoder.decode(values);
+	}
+	
+	@Benchmark
+	public Object lookupAndMapValues() {
+		return DecodersKt.decoderFor(manager, BenchObject.class).decode(values);
+	}
+}
@@ -0,0 +1,65 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.internal.ExtensionsKt;
+import com.austinv11.persistence.internal.PackerKt;
+import com.austinv11.persistence.internal.Payload;
+import com.austinv11.persistence.internal.Schema;
+import com.austinv11.persistence.internal.SchemaTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks packing and unpacking payloads, with and without negotiated schemas and string interning.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PackerBenchmark {
+	
+	@Param({"PING", "CREATION", "CHANGE", "REMOVAL", "INITIALIZE"})
+	public String op;
+	
+	@Param({"false", "true"})
+	public boolean schemas;
+	
+	@Param({"false", "true"})
+	public boolean interning;
+	
+	private PersistenceManager manager;
+	private Payload payload;
+	private Set<String> extensions;
+	private SchemaTable outbound;
+	private SchemaTable inbound;
+	private byte[] packed;
+	
+	@Setup
+	public void setup() {
+		manager = Fixtures.manager();
+		if (interning)
+			manager.setStringInterning(1024, "name");
+		payload = Fixtures.payload(manager, op);
+		extensions = schemas ? Collections.singleton(ExtensionsKt.EXT_SCHEMAS) : Collections.emptySet();
+		outbound = schemas ? new SchemaTable() : null;
+		inbound = schemas ? new SchemaTable() : null;
+		packed = PackerKt.pack(manager, payload, extensions, outbound);
+		if (schemas) {
+			for (Schema schema : outbound.unannounced())
+				inbound.define(manager, new Payload.Schema(schema));
+		}
+	}
+	
+	@Benchmark
+	public byte[] pack() {
+		return PackerKt.pack(manager, payload, extensions, outbound);
+	}
+	
+	@Benchmark
+	public Payload unpack() {
+		return PackerKt.unpack(manager, ByteBuffer.wrap(packed), null, inbound);
+	}
+}
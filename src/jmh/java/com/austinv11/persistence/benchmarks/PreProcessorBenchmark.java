@@ -0,0 +1,50 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PreProcessor;
+import com.austinv11.persistence.impl.AesGcmPreProcessor;
+import com.austinv11.persistence.impl.EncryptedPreProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the encrypting pre-processors. Round trips consume every packed frame in order, as the peer of a 
+ * connection would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreProcessorBenchmark {
+	
+	private static final String HOST = "localhost";
+	private static final int PORT = 6000;
+	
+	@Param({"ecb", "gcm"})
+	public String processor;
+	
+	@Param({"10", "1000"})
+	public int objects;
+	
+	private PreProcessor sender;
+	private PreProcessor receiver;
+	private byte[] frame;
+	
+	@Setup
+	public void setup() {
+		frame = Fixtures.frame(Fixtures.manager(), objects);
+		sender = create();
+		receiver = create();
+		//Complete the handshake (IDENTIFY then OK) so the benchmark measures steady state frames
+		receiver.consume(HOST, PORT, sender.pack(HOST, PORT, frame));
+		sender.consume(HOST, PORT, receiver.pack(HOST, PORT, frame));
+	}
+	
+	private PreProcessor create() {
+		return processor.equals("ecb") ? new EncryptedPreProcessor("benchmark") : new AesGcmPreProcessor("benchmark");
+	}
+	
+	@Benchmark
+	public byte[] roundTrip() {
+		return receiver.consume(HOST, PORT, sender.pack(HOST, PORT, frame));
+	}
+}
@@ -0,0 +1,47 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks calls dispatched through the proxy returned by {@link PersistenceManager#persist(Object)}. Setters also 
+ * rehash the object and update its store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProxyBenchmark {
+	
+	private IBenchObject plain;
+	private IBenchObject proxy;
+	private int counter;
+	
+	@Setup
+	public void setup() {
+		PersistenceManager manager = Fixtures.manager();
+		plain = new BenchObject(42);
+		proxy = manager.persist(new BenchObject(42));
+	}
+	
+	@Benchmark
+	public String baselineGetter() {
+		return plain.getName();
+	}
+	
+	@Benchmark
+	public String getter() {
+		return proxy.getName();
+	}
+	
+	@Benchmark
+	public int primitiveGetter() {
+		return proxy.getCount();
+	}
+	
+	@Benchmark
+	public void setter() {
+		proxy.setCount(counter++);
+	}
+}
@@ -0,0 +1,85 @@
+package com.austinv11.persistence.benchmarks;
+
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.impl.LocalStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link LocalStore} operations under contention, readers (and snapshot scans) run alongside a writer which 
+ * keeps replacing and removing objects.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StoreBenchmark {
+	
+	private static final int OBJECTS = 10_000;
+	
+	private LocalStore<BenchObject> store;
+	private BenchObject[] objects;
+	private long[] hashes;
+	
+	@Setup
+	public void setup() {
+		PersistenceManager manager = new PersistenceManager();
+		store = new LocalStore<>(manager);
+		objects = new BenchObject[OBJECTS];
+		hashes = new long[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			objects[i] = new BenchObject(i);
+			hashes[i] = manager.generateHash(objects[i]);
+			store.insert(objects[i]);
+		}
+	}
+	
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public BenchObject get() {
+		return store.get(hashes[ThreadLocalRandom.current().nextInt(OBJECTS)]);
+	}
+	
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public BenchObject insert() {
+		return store.insert(objects[ThreadLocalRandom.current().nextInt(OBJECTS)]);
+	}
+	
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(2)
+	public boolean contains() {
+		return store.contains(objects[ThreadLocalRandom.current().nextInt(OBJECTS)]);
+	}
+	
+	@Benchmark
+	@Group("churn")
+	@GroupThreads(2)
+	public BenchObject removeAndInsert() {
+		BenchObject object = objects[ThreadLocalRandom.current().nextInt(OBJECTS)];
+		store.remove(object);
+		return store.insert(object);
+	}
+	
+	@Benchmark
+	@Group("scan")
+	@GroupThreads(1)
+	public int snapshot() {
+		int count = 0;
+		for (BenchObject object : store.snapshot())
+			count++;
+		return count;
+	}
+	
+	@Benchmark
+	@Group("scan")
+	@GroupThreads(1)
+	public BenchObject update() {
+		int index = ThreadLocalRandom.current().nextInt(OBJECTS);
+		return store.updateQuietly(hashes[index], objects[index]);
+	}
+}
@@ -0,0 +1,39 @@
+package com.austinv11.persistence;
+
+import javax.annotation.Nonnull;
+
+/**
+ * This represents a compression codec used for payload frames. Codecs are negotiated with each peer during the
+ * handshake; frames smaller than the compression threshold are sent uncompressed regardless.
+ * 
+ * @see PersistenceManager#setCodecs(Codec...)
+ * @see PersistenceManager#setCompressionThreshold(int)
+ */
+public interface Codec {
+	
+	/**
+	 * A unique key for this codec type. NOTE: 0 is reserved for uncompressed frames.
+	 * 
+	 * @return The key for the codec.
+	 */
+	byte getKey();
+	
+	/**
+	 * Called to compress a frame. The output must contain everything needed to decompress it again (i.e. the original
+	 * length if the codec needs it).
+	 * 
+	 * @param input The data to compress.
+	 * @return The compressed data.
+	 */
+	@Nonnull
+	byte[] compress(@Nonnull byte[] input);
+	
+	/**
+	 * Called to decompress a frame compressed by {@link #compress(byte[])}.
+	 * 
+	 * @param input The data to decompress.
+	 * @return The decompressed data.
+	 */
+	@Nonnull
+	byte[] decompress(@Nonnull byte[] input);
+}
@@ -1,5 +1,8 @@
 package com.austinv11.persistence;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * This represents a connection to another node.
  */
@@ -27,12 +30,31 @@ public interface Connection {
 	long getLastPing();
 	
 	/**
-	 * Requests a ping to this node.
-	 * NOTE: This blocks until a PONG packet is received.
+	 * Requests a ping to this node. Connections are also pinged in the background, see 
+	 * {@link PersistenceManager#setHeartbeatInterval(long)}.
+	 * 
+	 * @return A future which is completed with the round trip time in ms once a PONG packet is received (or 
+	 * exceptionally if the connection is closed first).
+	 */
+	CompletableFuture<Long> ping();
+	
+	/**
+	 * Gets a percentile of the recently measured round trip times to this node.
+	 * 
+	 * @param percentile The percentile (0-100), i.e. 50 for the median or 99 for the tail latency.
+	 * @param unit The unit to return the round trip time in.
+	 * @return The round trip time, or -1 if none are recorded.
+	 */
+	long getRoundTripTime(double percentile, TimeUnit unit);
+	
+	/**
+	 * Gets how strongly this node is suspected to have failed (the phi value of an accrual failure detector). A value 
+	 * of 1 means there is a 10% chance that the node is actually still alive, 2 means a 1% chance, 3 means 0.1%, etc.
+	 * Connections are closed once this exceeds {@link PersistenceManager#setFailureThreshold(double)}.
 	 * 
-	 * @return The ping in ms.
+	 * @return The suspicion level, this is 0 for healthy nodes.
 	 */
-	long ping();
+	double getSuspicion();
 	
 	/**
 	 * Severs the connection to this node.
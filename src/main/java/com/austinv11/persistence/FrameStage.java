@@ -0,0 +1,46 @@
+package com.austinv11.persistence;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+
+/**
+ * This represents a stage which transforms frames after they are (optionally) compressed and before they are handed to
+ * the {@link PreProcessor}, i.e. for encryption or checksums. Unlike pre-processors, multiple stages can be installed;
+ * the chain used for a connection is negotiated during the handshake and frames pass through it in order when sent and
+ * in reverse order when received.
+ * <p>
+ * Frames are the bytes between the buffer's position and limit. Stages may transform them in place (and return the
+ * same buffer) or write the result to a buffer obtained from {@link StageContext#allocate(int)}, which is pooled. Stages
+ * must not retain either buffer after returning.
+ *
+ * @see PersistenceManager#setStages(FrameStage...)
+ */
+public interface FrameStage {
+	
+	/**
+	 * A unique key for this stage type.
+	 * 
+	 * @return The key for the stage.
+	 */
+	byte getKey();
+	
+	/**
+	 * Called to transform a frame to be sent.
+	 * 
+	 * @param context The context of the connection the frame belongs to.
+	 * @param frame The frame.
+	 * @return The transformed frame.
+	 */
+	@Nonnull
+	ByteBuffer pack(@Nonnull StageContext context, @Nonnull ByteBuffer frame);
+	
+	/**
+	 * Called to transform a frame received, this must reverse {@link #pack(StageContext, ByteBuffer)}.
+	 * 
+	 * @param context The context of the connection the frame belongs to.
+	 * @param frame The frame.
+	 * @return The transformed frame.
+	 */
+	@Nonnull
+	ByteBuffer consume(@Nonnull StageContext context, @Nonnull ByteBuffer frame);
+}
@@ -0,0 +1,27 @@
+package com.austinv11.persistence;
+
+import javax.annotation.Nullable;
+
+/**
+ * This merges concurrent writes to a property, rather than keeping whichever was written last (according to the
+ * nodes' hybrid logical clocks). Every node merges the writes it receives into its own value, so merging must give the
+ * same result regardless of the order (or number of times) values are merged in for the nodes to converge. In other
+ * words, it must be commutative, associative and idempotent (i.e. taking the maximum or the union of two sets).
+ *
+ * @param <T> The property type.
+ *
+ * @see PersistenceManager#setMergeFunction(Class, String, MergeFunction)
+ */
+@FunctionalInterface
+public interface MergeFunction<T> {
+
+	/**
+	 * Called to merge a received value into the local value of a property.
+	 *
+	 * @param local The local value.
+	 * @param remote The received value.
+	 * @return The merged value.
+	 */
+	@Nullable
+	T merge(@Nullable T local, @Nullable T remote);
+}
@@ -0,0 +1,94 @@
+package com.austinv11.persistence;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * This represents a sink for operational metrics of the transport and stores. Implementations are called on hot paths
+ * (potentially concurrently), so they should be cheap and non-blocking.
+ */
+public interface Metrics {
+
+	/**
+	 * This is called when a frame is written to a connection.
+	 *
+	 * @param connection The connection the frame was written to.
+	 * @param op The opcode of the payload.
+	 * @param bytes The size of the encoded (compressed) frame.
+	 */
+	void sent(@Nonnull Connection connection, @Nonnull OpCode op, int bytes);
+
+	/**
+	 * This is called when a frame is received from a connection.
+	 *
+	 * @param connection The connection the frame was received from.
+	 * @param op The opcode of the payload, or null if it was dropped as a duplicate before being decoded.
+	 * @param bytes The size of the encoded (compressed) frame.
+	 */
+	void received(@Nonnull Connection connection, @Nullable OpCode op, int bytes);
+
+	/**
+	 * This is called when a step of processing a frame has completed.
+	 *
+	 * @param timing The step.
+	 * @param nanos How long the step took in ns.
+	 */
+	void timed(@Nonnull Timing timing, long nanos);
+
+	/**
+	 * This is called when frames are queued on a connection because their lane was busy.
+	 *
+	 * @param connection The connection.
+	 * @param depth The number of frames waiting to be written.
+	 */
+	void queued(@Nonnull Connection connection, int depth);
+
+	/**
+	 * This is called when the metrics are installed on a manager, this allows gauges (i.e. store sizes) to be read
+	 * from it.
+	 *
+	 * @param manager The manager.
+	 */
+	default void bind(@Nonnull PersistenceManager manager) {}
+
+	/**
+	 * This is called when a connection is closed, this allows any state kept for the connection to be released.
+	 *
+	 * @param connection The closed connection.
+	 */
+	default void closed(@Nonnull Connection connection) {}
+
+	/**
+	 * These are the timed steps of sending and receiving frames.
+	 */
+	enum Timing {
+		/**
+		 * Packing a payload with msgpack.
+		 */
+		ENCODE,
+		/**
+		 * Compressing a packed payload.
+		 */
+		COMPRESS,
+		/**
+		 * Running a frame through the frame stages and pre-processor before it is written.
+		 */
+		ENCRYPT,
+		/**
+		 * Running a received frame through the pre-processor and frame stages.
+		 */
+		DECRYPT,
+		/**
+		 * Decompressing a received frame.
+		 */
+		DECOMPRESS,
+		/**
+		 * Unpacking a received payload (including decoding its objects).
+		 */
+		DECODE,
+		/**
+		 * Applying a received INITIALIZE, CREATION, CHANGE or REMOVAL payload to the local stores.
+		 */
+		APPLY
+	}
+}
@@ -0,0 +1,80 @@
+package com.austinv11.persistence;
+
+import java.util.Map;
+
+/**
+ * This exposes the metrics collected by {@link com.austinv11.persistence.impl.DefaultMetrics} over JMX.
+ */
+public interface MetricsMXBean {
+
+	/**
+	 * Gets the number of payloads sent, by opcode.
+	 *
+	 * @return The counts.
+	 */
+	Map<String, Long> getMessagesSent();
+
+	/**
+	 * Gets the number of (compressed) bytes sent, by opcode.
+	 *
+	 * @return The counts.
+	 */
+	Map<String, Long> getBytesSent();
+
+	/**
+	 * Gets the number of payloads received, by opcode.
+	 *
+	 * @return The counts.
+	 */
+	Map<String, Long> getMessagesReceived();
+
+	/**
+	 * Gets the number of (compressed) bytes received, by opcode.
+	 *
+	 * @return The counts.
+	 */
+	Map<String, Long> getBytesReceived();
+
+	/**
+	 * Gets the number of bytes sent and received, by connection (host:port).
+	 *
+	 * @return The counts, keyed by connection followed by ".in" or ".out".
+	 */
+	Map<String, Long> getConnectionBytes();
+
+	/**
+	 * Gets the number of frames waiting to be written, by connection (host:port).
+	 *
+	 * @return The queue depths.
+	 */
+	Map<String, Integer> getQueueDepths();
+
+	/**
+	 * Gets the 50th, 99th and 99.9th percentile and the maximum of every timed step in microseconds.
+	 *
+	 * @return The latencies, keyed by step followed by ".p50", ".p99", ".p999" or ".max".
+	 */
+	Map<String, Long> getLatencies();
+
+	/**
+	 * Gets the number of objects in each store, by type.
+	 *
+	 * @return The store sizes.
+	 */
+	Map<String, Integer> getStoreSizes();
+
+	/**
+	 * Gets the statistics of the string interning cache (if interning is enabled).
+	 *
+	 * @return The number of "hits" and "misses", the hit rate in percent ("hitRate") and the number of cached strings
+	 * ("size").
+	 *
+	 * @see PersistenceManager#setStringInterning(int, String...)
+	 */
+	Map<String, Long> getInterning();
+
+	/**
+	 * Resets every counter and histogram.
+	 */
+	void reset();
+}
@@ -2,6 +2,7 @@ package com.austinv11.persistence;
 
 /**
  * These represent the opcodes usable. The ordinal value of each constant corresponds to the payload number.
+ * NOTE: Opcodes after {@link #REMOVAL} are extensions to PPPP v2, they are only sent to nodes which negotiated them.
  */
 public enum OpCode {
 	IDENTIFY, 
@@ -13,5 +14,11 @@ public enum OpCode {
 	INITIALIZE,
 	CREATION,
 	CHANGE,
-	REMOVAL
+	REMOVAL,
+	IHAVE,
+	GRAFT,
+	PRUNE,
+	SCHEMA,
+	BULK_REMOVAL,
+	SEED
 }
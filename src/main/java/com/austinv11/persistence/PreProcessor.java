@@ -35,4 +35,12 @@ public interface PreProcessor {
 	 */
 	@Nonnull
 	byte[] consume(@Nonnull String host, int port, @Nonnull byte[] input);
+	
+	/**
+	 * Called when a connection is closed, this allows any state kept for the connection to be released.
+	 * 
+	 * @param host The host of the closed connection.
+	 * @param port The port from the provided host of the closed connection.
+	 */
+	default void disconnected(@Nonnull String host, int port) {}
 }
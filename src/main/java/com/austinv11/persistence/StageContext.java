@@ -0,0 +1,52 @@
+package com.austinv11.persistence;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * This represents the state of a {@link FrameStage} for a single connection. Frames of a connection are packed (and
+ * consumed) one at a time and in order, so stages don't need to synchronize on their state.
+ */
+public interface StageContext {
+	
+	/**
+	 * Gets the host of the connection.
+	 * 
+	 * @return The host.
+	 */
+	@Nonnull
+	String getHost();
+	
+	/**
+	 * Gets the port of the connection.
+	 * 
+	 * @return The port.
+	 */
+	int getPort();
+	
+	/**
+	 * Gets a pooled buffer to write a transformed frame to. The buffer is only valid until the stage returns and it
+	 * never shares memory with the frame being transformed.
+	 * 
+	 * @param capacity The minimum capacity required.
+	 * @return The buffer, positioned at 0 with its limit set to its capacity.
+	 */
+	@Nonnull
+	ByteBuffer allocate(int capacity);
+	
+	/**
+	 * Gets the state the stage attached to this connection for this direction (sending or receiving).
+	 * 
+	 * @return The state, or null if none was attached.
+	 */
+	@Nullable
+	Object getState();
+	
+	/**
+	 * Attaches state to this connection for this direction (sending or receiving).
+	 * 
+	 * @param state The state.
+	 */
+	void setState(@Nullable Object state);
+}
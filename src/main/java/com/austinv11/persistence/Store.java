@@ -5,6 +5,7 @@ import kotlin.Pair;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -30,6 +31,27 @@ public interface Store<T> extends Iterable<T>, RandomAccess {
 	 */
 	@Nullable T insertQuietly(@Nonnull T obj);
 	
+	/**
+	 * Inserts objects into the storeFor in bulk. Implementations should override this when they can insert a batch 
+	 * more efficiently than one object at a time (i.e. by sizing their index once).
+	 *
+	 * @param objects The objects to insert.
+	 */
+	default void insertAll(@Nonnull Collection<T> objects) {
+		objects.forEach(this::insert);
+	}
+	
+	/**
+	 * Inserts objects into the storeFor in bulk quietly (does not notify peers).
+	 *
+	 * @param objects The objects to insert.
+	 * 
+	 * @see #insertAll(Collection) 
+	 */
+	default void insertAllQuietly(@Nonnull Collection<T> objects) {
+		objects.forEach(this::insertQuietly);
+	}
+	
 	/**
 	 * Un-persists an object.
 	 * 
@@ -66,6 +88,52 @@ public interface Store<T> extends Iterable<T>, RandomAccess {
 	 */
 	boolean removeHashQuietly(long hash);
 	
+	/**
+	 * Un-persists objects in bulk given their PPPP hashes.
+	 *
+	 * @param hashes The hashes to remove.
+	 * @return The number of objects removed.
+	 *
+	 * @see PersistenceManager#generateHash(Object)
+	 */
+	default int removeAll(@Nonnull Collection<Long> hashes) {
+		int removed = 0;
+		for (long hash : hashes)
+			if (removeHash(hash))
+				removed++;
+		return removed;
+	}
+	
+	/**
+	 * Un-persists objects in bulk given their PPPP hashes quietly (does not notify peers).
+	 *
+	 * @param hashes The hashes to remove.
+	 * @return The number of objects removed.
+	 *
+	 * @see PersistenceManager#generateHash(Object)
+	 */
+	default int removeAllQuietly(@Nonnull Collection<Long> hashes) {
+		int removed = 0;
+		for (long hash : hashes)
+			if (removeHashQuietly(hash))
+				removed++;
+		return removed;
+	}
+	
+	/**
+	 * Un-persists every object matching a predicate.
+	 *
+	 * @param filter The predicate selecting the objects to remove.
+	 * @return The number of objects removed.
+	 */
+	default int removeIf(@Nonnull Predicate<? super T> filter) {
+		int removed = 0;
+		for (T obj : new ArrayList<>(collect()))
+			if (filter.test(obj) && remove(obj))
+				removed++;
+		return removed;
+	}
+	
 	/**
 	 * Checks if the provided object is already stored.
 	 * 
@@ -147,6 +215,19 @@ public interface Store<T> extends Iterable<T>, RandomAccess {
 	 */
 	@Nonnull Collection<T> collect();
 	
+	/**
+	 * Gets an immutable view of the objects stored at this point in time, it isn't affected by later insertions, 
+	 * updates or removals (though the objects themselves are still changed in place). This allows consistently 
+	 * exporting or scanning the store without blocking writers. The default implementation copies the collected 
+	 * contents, implementations should override this when they can do so more cheaply.
+	 *
+	 * @return The objects stored at this point in time.
+	 */
+	@Nonnull 
+	default Collection<T> snapshot() {
+		return Collections.unmodifiableList(new ArrayList<>(collect()));
+	}
+	
 	//Taken from Collection
 	
 	/**
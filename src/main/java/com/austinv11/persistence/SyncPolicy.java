@@ -0,0 +1,22 @@
+package com.austinv11.persistence;
+
+/**
+ * These are the policies for when writes to the write-ahead log are forced to disk.
+ *
+ * @see PersistenceManager#setWriteAheadLog(java.nio.file.Path, SyncPolicy, long)
+ */
+public enum SyncPolicy {
+	/**
+	 * Every write waits until it was forced to disk. Writes made concurrently (by different threads) are written and
+	 * forced together, so they share the cost of a single force.
+	 */
+	ALWAYS,
+	/**
+	 * Writes are written and forced together every interval, so at most the writes of the last interval can be lost.
+	 */
+	GROUP,
+	/**
+	 * Writes are written together every interval but never forced, the OS decides when they reach the disk.
+	 */
+	OS
+}
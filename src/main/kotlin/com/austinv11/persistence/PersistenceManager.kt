@@ -3,37 +3,94 @@
 package com.austinv11.persistence
 
 import com.austinv11.persistence.impl.DefaultFactory
+import com.austinv11.persistence.impl.LZ4Codec
 import com.austinv11.persistence.impl.NetworkStore
 import com.austinv11.persistence.impl.NoOpConnectionSpy
+import com.austinv11.persistence.impl.NoOpMetrics
 import com.austinv11.persistence.impl.NoOpPreProcessor
+import com.austinv11.persistence.internal.Baseline
+import com.austinv11.persistence.internal.ClassDecoder
+import com.austinv11.persistence.internal.DEFAULT_IO_DISPATCHER
+import com.austinv11.persistence.internal.HybridClock
+import com.austinv11.persistence.internal.InProcessTransport
+import com.austinv11.persistence.internal.MessageId
+import com.austinv11.persistence.internal.ObjectData
+import com.austinv11.persistence.internal.Replicas
+import com.austinv11.persistence.internal.SeenFilter
 import com.austinv11.persistence.internal.SourceAwareProxy
+import com.austinv11.persistence.internal.StringInterner
+import com.austinv11.persistence.internal.Transport
 import com.austinv11.persistence.internal.TwoWaySocket
+import com.austinv11.persistence.internal.WriteAheadLog
+import com.austinv11.persistence.internal.asDispatcher
+import com.austinv11.persistence.internal.decoderFor
+import com.austinv11.persistence.internal.nested
+import com.austinv11.persistence.internal.readSnapshot
+import com.austinv11.persistence.internal.replay
+import com.austinv11.persistence.internal.writeSnapshot
+import com.austinv11.persistence.internal.newVirtualThreadExecutor
 import kotlinx.coroutines.experimental.CommonPool
+import kotlinx.coroutines.experimental.CoroutineDispatcher
 import kotlinx.coroutines.experimental.launch
+import java.io.Closeable
+import java.io.IOException
 import java.io.InvalidClassException
 import java.lang.reflect.Proxy
+import java.nio.file.Path
+import java.security.SecureRandom
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.experimental.and
 
 /**
  * This manages persistence.
  */
-class PersistenceManager {
+class PersistenceManager : Closeable {
 
     internal val stores: MutableMap<Class<*>, Store<*>> = ConcurrentHashMap()
     internal val customDataTransformers: MutableList<ExternalData<in Any>> = CopyOnWriteArrayList()
     @Volatile internal var factory: StoreFactory = DefaultFactory()
 //    @Volatile internal var explicitPropertiesOnly = false
     @Volatile internal var deepPersistence = false
+    @Volatile internal var collectionDeltas = false
     @Volatile internal var version: Int? = null 
     @Volatile internal var port = 6000
     @Volatile internal var allowedConnections = 2
     @Volatile internal var spy: ConnectionSpy = NoOpConnectionSpy()
     @Volatile internal var processor: PreProcessor = NoOpPreProcessor()
-    internal val socket: TwoWaySocket by lazy { 
-        TwoWaySocket(this@PersistenceManager, port, allowedConnections, spy)
-    }  
+    @Volatile internal var codecs: List<Codec> = listOf(LZ4Codec())
+    @Volatile internal var compressionThreshold = 512
+    @Volatile internal var stages: List<FrameStage> = emptyList()
+    @Volatile internal var heartbeatInterval = 1000L
+    @Volatile internal var failureThreshold = 8.0
+    @Volatile internal var metrics: Metrics = NoOpMetrics()
+    @Volatile internal var inProcess = false
+    @Volatile internal var io: CoroutineDispatcher = DEFAULT_IO_DISPATCHER
+    @Volatile internal var encode: CoroutineDispatcher = CommonPool
+    @Volatile internal var apply: CoroutineDispatcher? = null //Inline on the connection's read loop
+    @Volatile internal var interner: StringInterner? = null
+    @Volatile internal var internedProperties: Set<String> = emptySet()
+    @Volatile internal var lazyMaterialization = false
+    @Volatile internal var seeding = false
+    @Volatile internal var baseline: Baseline? = null
+    @Volatile internal var pendingBaseline: Baseline? = null
+    @Volatile internal var wal: WriteAheadLog? = null
+    internal val nodeId = SecureRandom().nextLong()
+    internal val sequence = AtomicLong()
+    internal val seen = SeenFilter(30_000)
+    internal val decoders = ConcurrentHashMap<Class<*>, ClassDecoder>()
+    internal val clock = HybridClock()
+    internal val replicas = Replicas()
+    internal val mergeFunctions = ConcurrentHashMap<Pair<Class<*>, String>, MergeFunction<Any?>>()
+    private val lazyTransport = lazy { 
+        if (inProcess)
+            InProcessTransport(this@PersistenceManager, port, allowedConnections, spy)
+        else
+            TwoWaySocket(this@PersistenceManager, port, allowedConnections, spy)
+    }
+    internal val transport: Transport by lazyTransport
 
     /**
      * This gets or generates a [Store] for the provided type.
@@ -42,7 +99,7 @@ class PersistenceManager {
      * @return The store.
      */
     fun <T : Any> storeFor(clazz: Class<T>): Store<T> {
-        return stores.computeIfAbsent(clazz) { NetworkStore<T>(factory.buildStore(this, clazz), socket) } as Store<T>
+        return stores.computeIfAbsent(clazz) { NetworkStore(factory.buildStore(this, clazz), transport, type = clazz) } as Store<T>
     }
 
     /**
@@ -103,10 +160,26 @@ class PersistenceManager {
     fun generateHash(obj: Any): Long {
         val obj = obj.unwrapObject() //Make sure this isn't proxied
         
-        val name = obj::class.simpleName!!
-        val nameHash = charArrayOf(name[0], name[Math.floor(name.length / 2.0).toInt()], name[name.length-1])
-        val fieldCount = matchProperties(obj).size
         var hashCode = obj.hashCode()
+        var hash = typePart(obj.javaClass, matchProperties(obj).size)
+
+        hash = shiftAndAdd(hash, (hashCode and mask_int).toByte())
+        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
+        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
+        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
+
+        return hash
+    }
+
+    /**
+     * Gets the hash the objects of a type would have if their hashCode was 0 (see [generateHash]), this picks the lane
+     * of payloads about a whole type.
+     */
+    internal fun <T : Any> typeHash(type: Class<T>): Long = typePart(type, matchProperties(type).size) shl 32
+
+    private fun typePart(type: Class<*>, fieldCount: Int): Long {
+        val name = type.kotlin.simpleName!!
+        val nameHash = charArrayOf(name[0], name[Math.floor(name.length / 2.0).toInt()], name[name.length-1])
         var hash = 0L
 
         hash = shiftAndAdd(hash, nameHash[0].toByte())
@@ -114,12 +187,6 @@ class PersistenceManager {
         hash = shiftAndAdd(hash, nameHash[2].toByte())
 
         hash = shiftAndAdd(hash, fieldCount.toByte())
-
-        hash = shiftAndAdd(hash, (hashCode and mask_int).toByte())
-        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
-        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
-        hash = shiftAndAdd(hash, ((hashCode shr 8).apply { hashCode = this }).toByte() and mask)
-
         return hash
     }
 
@@ -128,8 +195,8 @@ class PersistenceManager {
      */
     @JvmOverloads 
     fun connectTo(host: String, port: Int, metadata: Map<String, Any?>? = null) {
-        launch(CommonPool) {
-            socket.connectTo(host, port, metadata)
+        launch(io) {
+            transport.connectTo(host, port, metadata)
         }
     }
 
@@ -149,6 +216,11 @@ class PersistenceManager {
     /**
      * This sets whether nested objects are also persisted. This can hurt performance and lead to weird bugs so this is
      * FALSE by default. It is recommended that persisted objects' fields are immutable to prevent necessitating this.
+     * 
+     * Nested objects (property values which have properties of their own) are sent along with their parent, so every 
+     * node must have their types available. Nested objects returned by interface typed getters of persisted objects 
+     * are proxied as well, changing one of their properties only sends that property's path (i.e. `address.street`)
+     * and value.
      *
      * @param deepPersistence Set this to true to enable deep persistence.
      * @return The same manager for chaining methods.
@@ -158,6 +230,42 @@ class PersistenceManager {
         return this
     }
 
+    /**
+     * This sets whether the getters of `List`, `Set` and `Map` properties of persisted objects return views which send 
+     * changes made in place as small deltas, rather than the collection itself. Each call returns a new view, so this
+     * is disabled by default.
+     * 
+     * Deltas which add to or remove from sets and maps commute, but positional changes to lists (appends, inserts, sets
+     * and removals by index) don't: concurrent ones made on different nodes can leave the elements in a different order
+     * on each node. Set the whole list instead if its order matters.
+     *
+     * @param collectionDeltas Set this to true to send changes made in place as deltas.
+     * @return The same manager for chaining methods.
+     */
+    fun setCollectionDeltas(collectionDeltas: Boolean): PersistenceManager {
+        this.collectionDeltas = collectionDeltas
+        return this
+    }
+
+    /**
+     * This sets the function which merges concurrent writes to a property of a type. By default, the write with the
+     * latest (hybrid logical clock) timestamp wins on every node.
+     * 
+     * @param type The persisted type.
+     * @param property The name of the property.
+     * @param function The merge function, or null to remove it.
+     * @return The same manager for chaining methods.
+     * 
+     * @see MergeFunction
+     */
+    fun <T> setMergeFunction(type: Class<*>, property: String, function: MergeFunction<T>?): PersistenceManager {
+        if (function == null)
+            this.mergeFunctions.remove(type to property)
+        else
+            this.mergeFunctions[type to property] = function as MergeFunction<Any?>
+        return this
+    }
+
     /**
      * This registers a custom data transformer. NOTE: Transformers registered earlier are given higher priority in
      * translating data.
@@ -191,6 +299,59 @@ class PersistenceManager {
         return this
     }
 
+    /**
+     * This sets whether this node connects to other nodes in the same JVM rather than over TCP (default is false). 
+     * In-process nodes are addressed by their server port (see [setServerPort]) and hand payloads to each other 
+     * directly, so nothing is encoded, compressed or pre-processed. This must be set before the node is used.
+     */
+    fun setInProcess(inProcess: Boolean): PersistenceManager {
+        this.inProcess = inProcess
+        return this
+    }
+
+    /**
+     * This sets the executor which runs blocking I/O; accepting and opening connections and the read loop of every 
+     * connection (which occupies a thread for as long as the connection is open, so this must not be bounded by the 
+     * number of connections). By default this is a cached pool of daemon threads.
+     * 
+     * @see setVirtualThreads
+     */
+    fun setIoExecutor(executor: Executor): PersistenceManager {
+        this.io = executor.asDispatcher()
+        return this
+    }
+
+    /**
+     * This sets whether blocking I/O runs on virtual threads (one per task, so every connection gets its own) rather 
+     * than the I/O executor. This requires JDK 21+.
+     * 
+     * @throws UnsupportedOperationException If virtual threads aren't available.
+     * @see setIoExecutor
+     */
+    fun setVirtualThreads(virtualThreads: Boolean): PersistenceManager {
+        this.io = if (virtualThreads) newVirtualThreadExecutor().asDispatcher() else DEFAULT_IO_DISPATCHER
+        return this
+    }
+
+    /**
+     * This sets the executor which encodes and sends replicated payloads (store changes, heartbeats and the gossip 
+     * which repairs the broadcast tree). By default this is the common pool.
+     */
+    fun setEncodeExecutor(executor: Executor): PersistenceManager {
+        this.encode = executor.asDispatcher()
+        return this
+    }
+
+    /**
+     * This sets the executor which applies received payloads to the stores, payloads received from a connection are 
+     * still applied one at a time in the order they were received. By default payloads are applied by the thread 
+     * which read them (or, for in-process nodes, on the encode executor).
+     */
+    fun setApplyExecutor(executor: Executor): PersistenceManager {
+        this.apply = executor.asDispatcher()
+        return this
+    }
+
     /**
      * This sets the connection spy/interceptor.
      */
@@ -204,15 +365,202 @@ class PersistenceManager {
      * 
      * @see NoOpPreProcessor
      * @see EncryptedPreProcessor
+     * @see AesGcmPreProcessor
      */
     fun setPreProcessor(processor: PreProcessor) : PersistenceManager {
         this.processor = processor
         return this
     }
 
+    /**
+     * This sets the codecs which may be used to compress frames, in order of preference. The codec used for a 
+     * connection is negotiated during the handshake, peers which don't support codec negotiation always receive LZ4 
+     * frames. By default this only contains [LZ4Codec].
+     * 
+     * @see NoOpCodec
+     * @see LZ4Codec
+     * @see ZstdCodec
+     */
+    fun setCodecs(vararg codecs: Codec): PersistenceManager {
+        this.codecs = codecs.toList()
+        return this
+    }
+
+    /**
+     * This sets the size in bytes below which frames are sent uncompressed to peers which negotiated a codec (default 
+     * is 512).
+     */
+    fun setCompressionThreshold(threshold: Int): PersistenceManager {
+        this.compressionThreshold = threshold
+        return this
+    }
+
+    /**
+     * This sets whether decoded strings are interned, so strings which repeat across payloads (and objects) share a 
+     * single instance rather than a new one being allocated every time. Property names are always interned while 
+     * values are only interned for the provided properties (i.e. enum-like fields such as a status or region). The
+     * cache holds at most `capacity` strings (of up to 64 bytes), interning is disabled (0) by default.
+     * 
+     * @param capacity The number of cached strings, or 0 to disable interning.
+     * @param properties The names of the properties whose (string) values are interned.
+     * @return The same manager for chaining methods.
+     * 
+     * @see DefaultMetrics.getInterning
+     */
+    fun setStringInterning(capacity: Int, vararg properties: String): PersistenceManager {
+        this.interner = if (capacity > 0) StringInterner(capacity) else null
+        this.internedProperties = properties.toSet()
+        return this
+    }
+
+    /**
+     * This sets whether received objects are kept in their encoded form until they are first accessed (by getting, 
+     * changing or iterating over them), rather than being decoded as soon as they arrive. This makes joining a network 
+     * with large stores much cheaper when only some of the objects are ever read. Only objects packed against a 
+     * negotiated schema are deferred, and sending the state to a new peer decodes every object. This is disabled by 
+     * default.
+     * 
+     * @return The same manager for chaining methods.
+     */
+    fun setLazyMaterialization(lazy: Boolean): PersistenceManager {
+        this.lazyMaterialization = lazy
+        return this
+    }
+
+    /**
+     * This sets whether new peers (which support it) are seeded from the last snapshot this node wrote or restored, 
+     * rather than being sent every object in INITIALIZE payloads. The snapshot's compressed blocks are sent as they 
+     * are, followed by the objects which were inserted, changed or removed since it was written. This must be enabled
+     * before the snapshot is written (or restored) and is disabled by default.
+     * 
+     * @return The same manager for chaining methods.
+     * 
+     * @see snapshot
+     */
+    fun setSeeding(seeding: Boolean): PersistenceManager {
+        this.seeding = seeding
+        if (!seeding) {
+            this.baseline = null
+            this.pendingBaseline = null
+        }
+        return this
+    }
+
+    /**
+     * This sets the write-ahead log which every change to the stores (local or received from peers) is appended to, so
+     * they survive a restart of the whole network. The records already in the log are replayed (quietly) first, so this
+     * should be set once the node is configured and the last snapshot was restored (see [restore]). Writing a snapshot
+     * starts a new log, the records it covers are deleted once it was written.
+     * 
+     * Records are appended by the threads making the changes and written together, how long a change takes to become
+     * durable (and how long making it blocks) depends on the policy. With [SyncPolicy.GROUP] (the default), the log is 
+     * written and forced every `intervalMillis` (default is 10).
+     * 
+     * @param path The log file, or null to close the current log.
+     * @return The same manager for chaining methods.
+     * @throws IOException If the log can't be replayed or opened.
+     * 
+     * @see SyncPolicy
+     */
+    @Throws(IOException::class)
+    @JvmOverloads
+    fun setWriteAheadLog(path: Path?, policy: SyncPolicy = SyncPolicy.GROUP, intervalMillis: Long = 10): PersistenceManager {
+        val previous = wal
+        wal = null
+        previous?.close()
+        if (path != null) {
+            val replayed = replay(path)
+            if (replayed > 0) logger.info("Replayed {} records of the write-ahead log {}", replayed, path)
+            wal = WriteAheadLog(path, policy, intervalMillis, io)
+        }
+        return this
+    }
+
+    /**
+     * This sets the stages which frames may pass through (after compression and before the [PreProcessor]), in order.
+     * The chain used for a connection is negotiated during the handshake and only contains the stages both nodes 
+     * have. By default this is empty.
+     * 
+     * @see AesGcmPreProcessor
+     * @see ChecksumStage
+     */
+    fun setStages(vararg stages: FrameStage): PersistenceManager {
+        this.stages = stages.toList()
+        return this
+    }
+
+    /**
+     * This sets how often (in ms) connections are pinged in the background (default is 1000), 0 disables heartbeats.
+     */
+    fun setHeartbeatInterval(intervalMillis: Long): PersistenceManager {
+        this.heartbeatInterval = intervalMillis
+        return this
+    }
+
+    /**
+     * This sets the suspicion level (phi) above which connections are considered dead and closed (default is 8, which 
+     * roughly corresponds to a 1 in 10^8 chance of closing a healthy connection).
+     * 
+     * @see Connection.getSuspicion
+     */
+    fun setFailureThreshold(phi: Double): PersistenceManager {
+        this.failureThreshold = phi
+        return this
+    }
+
+    /**
+     * This sets where metrics about the transport and stores are reported. By default this uses a No-Op implementation
+     * (in which case nothing is timed).
+     * 
+     * @see NoOpMetrics
+     * @see DefaultMetrics
+     */
+    fun setMetrics(metrics: Metrics): PersistenceManager {
+        metrics.bind(this)
+        this.metrics = metrics
+        return this
+    }
+
+    /**
+     * This sets how long (in ms) the ids of received payloads are remembered in order to drop duplicates which arrive
+     * through other peers (default is 30000).
+     */
+    fun setDuplicateWindow(windowMillis: Long): PersistenceManager {
+        this.seen.windowMillis = windowMillis
+        return this
+    }
+
+    /**
+     * Writes the objects of every store to a snapshot file, block compressed and grouped by type. The file is only
+     * replaced once it was written completely, after which the records of the write-ahead log (if there is one, see
+     * [setWriteAheadLog]) written before it was started are deleted.
+     * 
+     * @param path The file to write.
+     * @throws IOException If the file can't be written.
+     * 
+     * @see restore
+     */
+    @Throws(IOException::class)
+    fun snapshot(path: Path) {
+        writeSnapshot(path)
+    }
+
+    /**
+     * Quietly (without notifying peers) inserts the objects of a snapshot file, objects of types which don't exist 
+     * locally are skipped.
+     * 
+     * @param path The file written by [snapshot].
+     * @return The number of objects restored.
+     * @throws IOException If the file can't be read.
+     */
+    @Throws(IOException::class)
+    fun restore(path: Path): Int {
+        return readSnapshot(path)
+    }
+
     /**
      * Invalidates persisted caches. If this node is disconnected with no other peers, it is recommended that this node
-     * saves the persisted objects somehow locally.
+     * saves the persisted objects locally (see [snapshot]).
      * 
      * @see [ConnectionSpy]
      */
@@ -225,13 +573,28 @@ class PersistenceManager {
         }
     }
 
+    /**
+     * Disconnects from every peer, stops listening for connections and closes the write-ahead log (if any). The stores
+     * are left as they are.
+     */
+    @Throws(IOException::class)
+    override fun close() {
+        if (lazyTransport.isInitialized()) transport.close()
+        wal?.let {
+            wal = null
+            it.close()
+        }
+    }
+
     /**
      * This gets the currently active connections.
      */
     fun getConnections(): List<Connection> {
-        return socket.connections.map { it.connection }
+        return transport.connections.map { it.connection }
     }
     
+    internal fun nextMessageId(): MessageId = MessageId(nodeId, sequence.getAndIncrement())
+    
     internal fun Any.findInterfaces(): Array<Class<*>> = this.javaClass.interfaces
 
     @Suppress("UNCHECKED_CAST")
@@ -245,7 +608,9 @@ class PersistenceManager {
     }
     
     internal fun findType(map: Map<String, Any?>): Class<*> {
-        val typeCandidates = stores.mapValues { socket.context.matchProperties(it.key) }
+        if (map is ObjectData && map.type != null && map.properties != null) return map.type //Already resolved by a schema
+        
+        val typeCandidates = stores.mapValues { matchProperties(it.key) }
         val likelyCandidates = mutableMapOf<Double, MutableList<Class<*>>>() //Key = percent certainty of match, candidates
         typeCandidates.forEach { k, v ->
             //TODO: More advanced heuristics for checking types
@@ -261,11 +626,22 @@ class PersistenceManager {
     }
 
     internal fun mapValues(map: Map<String, Any?>, clazz: Class<*>, _instance: Any? = null): Any {
+        if (_instance == null && map is ObjectData && map.instance != null && map.type == clazz) return map.instance //Decoded while unpacking
+        if (_instance == null && map is ObjectData && map.encoded != null && map.type == clazz) return map.encoded!!.decode()
+        if (_instance == null && map !is ObjectData) return decoderFor(clazz).decode(map, this)
+        
         val instance = _instance ?: clazz.fastInstance()
+        if (map is ObjectData && map.properties != null && map.type == clazz) { //Properties are already matched, skip the names
+            for (i in 0..(map.size - 1)) {
+                map.properties[map.indexAt(i)]?.let { it.setter.invokeWithArguments(instance, nested(map.propertyValues[i], it.type)) }
+            }
+            return instance
+        }
+        
         val properties = if (_instance == null) matchProperties(clazz) else matchProperties(instance)
         map.mapKeys { val key = it.key; properties.firstOrNull { it.name == key } }
                 .filter { it.key != null }
-                .forEach { k, v -> k!!.setter.let { if (_instance == null) it.bindTo(instance) else it }.invokeWithArguments(v) }
+                .forEach { k, v -> k!!.setter.let { if (_instance == null) it.bindTo(instance) else it }.invokeWithArguments(nested(v, k.type)) }
         return instance
     }
 }
@@ -2,7 +2,10 @@
 
 package com.austinv11.persistence
 
+import com.austinv11.persistence.impl.NoOpMetrics
+import com.austinv11.persistence.internal.ObjectData
 import com.austinv11.persistence.internal.SourceAwareProxy
+import com.austinv11.persistence.internal.mapNested
 import org.slf4j.LoggerFactory
 import java.lang.invoke.MethodHandle
 import java.lang.invoke.MethodHandles
@@ -50,13 +53,26 @@ internal fun <T> Class<T>.fastInstance(): T { //We should use unsafe for fast al
     }
 }
 
-internal fun Any.map(manager: PersistenceManager): Map<String, Any?> {
-    val map = mutableMapOf<String, Any?>()
-    val properties = manager.matchProperties(this)
-    properties.forEach { 
-        map[it.name] = it.getter.invokeWithArguments()
+/**
+ * Times a block when metrics are installed.
+ */
+internal inline fun <T> PersistenceManager.timed(timing: Metrics.Timing, block: () -> T): T {
+    val metrics = metrics
+    if (metrics is NoOpMetrics) return block()
+    
+    val start = System.nanoTime()
+    try {
+        return block()
+    } finally {
+        metrics.timed(timing, System.nanoTime() - start)
     }
-    return map
+}
+
+internal fun Any.map(manager: PersistenceManager): ObjectData = map(manager, 0)
+
+internal fun Any.map(manager: PersistenceManager, depth: Int): ObjectData {
+    val properties = manager.matchProperties(this)
+    return ObjectData(this.javaClass, properties.map { it.name }, Array(properties.size) { manager.mapNested(properties[it].getter.invokeWithArguments(), depth) })
 }
 
 internal fun shiftAndAdd(original: Long, toAdd: Byte): Long {
@@ -0,0 +1,51 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.FrameStage
+import com.austinv11.persistence.StageContext
+import java.nio.ByteBuffer
+import java.util.InputMismatchException
+import java.util.zip.CRC32
+
+internal const val CHECKSUM_LENGTH = 4
+
+/**
+ * This appends a CRC32 checksum to frames and verifies it when they are received. The checksum is appended in place
+ * when the frame's buffer has room for it.
+ */
+class ChecksumStage : FrameStage {
+
+    override fun getKey(): Byte = 3
+
+    override fun pack(context: StageContext, frame: ByteBuffer): ByteBuffer {
+        val checksum = context.checksum(frame)
+        if (frame.capacity() - frame.limit() >= CHECKSUM_LENGTH) {
+            val end = frame.limit()
+            frame.limit(end + CHECKSUM_LENGTH)
+            frame.putInt(end, checksum)
+            return frame
+        }
+
+        val output = context.allocate(frame.remaining() + CHECKSUM_LENGTH)
+        output.put(frame)
+        output.putInt(checksum)
+        output.flip()
+        return output
+    }
+
+    override fun consume(context: StageContext, frame: ByteBuffer): ByteBuffer {
+        if (frame.remaining() < CHECKSUM_LENGTH) throw InputMismatchException("Frame is missing its checksum!")
+
+        val end = frame.limit() - CHECKSUM_LENGTH
+        val expected = frame.getInt(end)
+        frame.limit(end)
+        if (context.checksum(frame) != expected) throw InputMismatchException("Frame checksum mismatch!")
+        return frame
+    }
+
+    private fun StageContext.checksum(frame: ByteBuffer): Int {
+        val crc = state as CRC32? ?: CRC32().also { state = it }
+        crc.reset()
+        crc.update(frame.duplicate())
+        return crc.value.toInt()
+    }
+}
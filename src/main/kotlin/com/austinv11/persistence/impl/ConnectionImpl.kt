@@ -2,42 +2,44 @@ package com.austinv11.persistence.impl
 
 import com.austinv11.persistence.Connection
 import com.austinv11.persistence.internal.Payload
-import com.austinv11.persistence.internal.TwoWaySocket
-import kotlinx.coroutines.experimental.delay
+import com.austinv11.persistence.internal.Transport
 import kotlinx.coroutines.experimental.runBlocking
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
 
-class ConnectionImpl(val socket: TwoWaySocket.CommunicationManager) : Connection {
+class ConnectionImpl(val link: Transport.Link) : Connection {
     
     @Volatile internal var lastPing: Long = -1
-    @Volatile internal var lastPingTime: Long = 0
     
     override fun getHost(): String {
-        return socket.host
+        return link.host
     }
 
     override fun getPort(): Int {
-        return socket.port
+        return link.port
     }
 
     override fun getLastPing(): Long {
         return lastPing
     }
 
-    override fun ping(): Long {
-        val originalTime = lastPingTime
-        runBlocking {
-            socket.send(Payload.Ping())
-            while (lastPingTime == originalTime) {
-                delay(1)
-            }
-        }
-        return lastPing
+    override fun ping(): CompletableFuture<Long> {
+        return link.heartbeats.ping().thenApply { TimeUnit.NANOSECONDS.toMillis(it) }
+    }
+
+    override fun getRoundTripTime(percentile: Double, unit: TimeUnit): Long {
+        val roundTrip = link.heartbeats.percentile(percentile)
+        return if (roundTrip < 0) -1 else unit.convert(roundTrip, TimeUnit.NANOSECONDS)
+    }
+
+    override fun getSuspicion(): Double {
+        return link.detector.phi(System.nanoTime())
     }
 
     override fun disconnect() {
         runBlocking { 
-            socket.send(Payload.Kick())
+            link.send(Payload.Kick())
         }
-        socket.close()
+        link.close()
     }
 }
@@ -0,0 +1,159 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.Connection
+import com.austinv11.persistence.Metrics
+import com.austinv11.persistence.MetricsMXBean
+import com.austinv11.persistence.OpCode
+import com.austinv11.persistence.PersistenceManager
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+
+/**
+ * This keeps metrics in memory with lock-free counters and [LatencyHistogram]s, they can be read directly or through
+ * JMX (see [register]).
+ */
+class DefaultMetrics : Metrics, MetricsMXBean {
+
+    private val ops = OpCode.values()
+    private val messagesSent = Array(ops.size) { LongAdder() }
+    private val bytesSent = Array(ops.size) { LongAdder() }
+    private val messagesReceived = Array(ops.size + 1) { LongAdder() } //The last slot counts dropped duplicates
+    private val bytesReceived = Array(ops.size + 1) { LongAdder() }
+    private val connections = ConcurrentHashMap<Connection, ConnectionMetrics>()
+    private val timings = Metrics.Timing.values().map { LatencyHistogram() }.toTypedArray()
+    @Volatile private var manager: PersistenceManager? = null
+    @Volatile private var name: ObjectName? = null
+
+    override fun sent(connection: Connection, op: OpCode, bytes: Int) {
+        messagesSent[op.ordinal].increment()
+        bytesSent[op.ordinal].add(bytes.toLong())
+        metricsFor(connection).bytesOut.add(bytes.toLong())
+    }
+
+    override fun received(connection: Connection, op: OpCode?, bytes: Int) {
+        val index = op?.ordinal ?: ops.size
+        messagesReceived[index].increment()
+        bytesReceived[index].add(bytes.toLong())
+        metricsFor(connection).bytesIn.add(bytes.toLong())
+    }
+
+    override fun timed(timing: Metrics.Timing, nanos: Long) {
+        timings[timing.ordinal].record(nanos)
+    }
+
+    override fun queued(connection: Connection, depth: Int) {
+        metricsFor(connection).queueDepth = depth
+    }
+
+    override fun bind(manager: PersistenceManager) {
+        this.manager = manager
+    }
+
+    override fun closed(connection: Connection) {
+        connections.remove(connection)
+    }
+
+    /**
+     * Gets the histogram of a timed step.
+     */
+    fun getTiming(timing: Metrics.Timing): LatencyHistogram = timings[timing.ordinal]
+
+    /**
+     * Gets the number of payloads with the provided opcode which were sent.
+     */
+    fun getMessagesSent(op: OpCode): Long = messagesSent[op.ordinal].sum()
+
+    /**
+     * Gets the number of payloads with the provided opcode which were received.
+     */
+    fun getMessagesReceived(op: OpCode): Long = messagesReceived[op.ordinal].sum()
+
+    override fun getMessagesSent(): Map<String, Long> = ops.associate { it.name to messagesSent[it.ordinal].sum() }
+
+    override fun getBytesSent(): Map<String, Long> = ops.associate { it.name to bytesSent[it.ordinal].sum() }
+
+    override fun getMessagesReceived(): Map<String, Long> = ops.associate { it.name to messagesReceived[it.ordinal].sum() } + ("DUPLICATE" to messagesReceived[ops.size].sum())
+
+    override fun getBytesReceived(): Map<String, Long> = ops.associate { it.name to bytesReceived[it.ordinal].sum() } + ("DUPLICATE" to bytesReceived[ops.size].sum())
+
+    override fun getConnectionBytes(): Map<String, Long> {
+        val bytes = mutableMapOf<String, Long>()
+        connections.forEach { k, v ->
+            bytes["${k.key}.in"] = v.bytesIn.sum()
+            bytes["${k.key}.out"] = v.bytesOut.sum()
+        }
+        return bytes
+    }
+
+    override fun getQueueDepths(): Map<String, Int> = connections.entries.associate { it.key.key to it.value.queueDepth }
+
+    override fun getLatencies(): Map<String, Long> {
+        val latencies = mutableMapOf<String, Long>()
+        Metrics.Timing.values().forEach {
+            val histogram = timings[it.ordinal]
+            latencies["${it.name}.p50"] = histogram.getPercentile(50.0, TimeUnit.MICROSECONDS)
+            latencies["${it.name}.p99"] = histogram.getPercentile(99.0, TimeUnit.MICROSECONDS)
+            latencies["${it.name}.p999"] = histogram.getPercentile(99.9, TimeUnit.MICROSECONDS)
+            latencies["${it.name}.max"] = histogram.getMax(TimeUnit.MICROSECONDS)
+        }
+        return latencies
+    }
+
+    override fun getStoreSizes(): Map<String, Int> {
+        return manager?.stores?.entries?.associate { it.key.name to it.value.size() } ?: emptyMap()
+    }
+
+    override fun getInterning(): Map<String, Long> {
+        val interner = manager?.interner ?: return emptyMap()
+        val hits = interner.hits.sum()
+        val misses = interner.misses.sum()
+        return mapOf("hits" to hits, "misses" to misses, "hitRate" to (if (hits + misses == 0L) 0 else hits * 100 / (hits + misses)), 
+                "size" to interner.size.toLong())
+    }
+
+    override fun reset() {
+        manager?.interner?.reset()
+        (messagesSent + bytesSent + messagesReceived + bytesReceived).forEach { it.reset() }
+        connections.values.forEach {
+            it.bytesIn.reset()
+            it.bytesOut.reset()
+        }
+        timings.forEach { it.reset() }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under
+     * `com.austinv11.persistence:type=Metrics,port=<server port>`.
+     *
+     * @return The name these metrics were registered under.
+     */
+    fun register(): ObjectName {
+        val name = ObjectName("com.austinv11.persistence:type=Metrics,port=${manager?.port ?: 0}")
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name)
+        this.name = name
+        return name
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server (if they were registered).
+     */
+    fun unregister() {
+        val name = this.name ?: return
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name)
+        this.name = null
+    }
+
+    private val Connection.key: String
+        get() = "$host:$port"
+
+    private fun metricsFor(connection: Connection) = connections[connection] ?: connections.computeIfAbsent(connection) { ConnectionMetrics() }
+
+    private class ConnectionMetrics {
+        val bytesIn = LongAdder()
+        val bytesOut = LongAdder()
+        @Volatile var queueDepth = 0
+    }
+}
@@ -0,0 +1,41 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.Codec
+import net.jpountz.lz4.LZ4Factory
+
+/**
+ * This compresses frames with raw LZ4 blocks (prefixed by the original length), skipping the framing overhead of the
+ * LZ4 frame format.
+ */
+class LZ4Codec : Codec {
+    
+    private val compressor = LZ4Factory.fastestInstance().fastCompressor()
+    private val decompressor = LZ4Factory.fastestInstance().fastDecompressor()
+    
+    override fun getKey(): Byte = 1
+
+    override fun compress(input: ByteArray): ByteArray {
+        val output = ByteArray(4 + compressor.maxCompressedLength(input.size))
+        writeLength(output, input.size)
+        val len = compressor.compress(input, 0, input.size, output, 4, output.size - 4)
+        return output.copyOf(4 + len)
+    }
+
+    override fun decompress(input: ByteArray): ByteArray {
+        val output = ByteArray(readLength(input))
+        decompressor.decompress(input, 4, output, 0, output.size)
+        return output
+    }
+}
+
+private fun writeLength(bytes: ByteArray, length: Int) {
+    bytes[0] = (length ushr 24).toByte()
+    bytes[1] = (length ushr 16).toByte()
+    bytes[2] = (length ushr 8).toByte()
+    bytes[3] = length.toByte()
+}
+
+private fun readLength(bytes: ByteArray): Int {
+    return ((bytes[0].toInt() and 0xff) shl 24) or ((bytes[1].toInt() and 0xff) shl 16) or 
+            ((bytes[2].toInt() and 0xff) shl 8) or (bytes[3].toInt() and 0xff)
+}
@@ -0,0 +1,98 @@
+package com.austinv11.persistence.impl
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+private const val SUB_BUCKET_BITS = 7
+private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+private const val HALF_SUB_BUCKETS = SUB_BUCKETS / 2
+private const val BUCKETS = 64 - SUB_BUCKET_BITS + 1
+
+/**
+ * This is a lock-free histogram of durations (in ns) in the style of HdrHistogram. Values are counted in log-linear
+ * buckets: every power of two range is split into 64 linear sub-buckets, so recorded values (and the percentiles read
+ * from them) are accurate to within ~1.5% over the whole range of longs while the histogram has a fixed size.
+ */
+class LatencyHistogram {
+
+    private val counts = AtomicLongArray(SUB_BUCKETS + (BUCKETS - 1) * HALF_SUB_BUCKETS)
+    private val count = LongAdder()
+    private val sum = LongAdder()
+    private val max = AtomicLong()
+
+    fun record(nanos: Long) {
+        val value = Math.max(0, nanos)
+        counts.incrementAndGet(indexOf(value))
+        count.increment()
+        sum.add(value)
+        max.accumulateAndGet(value) { a, b -> Math.max(a, b) }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     */
+    fun getCount(): Long = count.sum()
+
+    /**
+     * Gets the mean of the recorded values.
+     */
+    fun getMean(unit: TimeUnit): Double {
+        val count = getCount()
+        return if (count == 0L) 0.0 else sum.sum().toDouble() / count / unit.toNanos(1)
+    }
+
+    /**
+     * Gets the largest recorded value.
+     */
+    fun getMax(unit: TimeUnit): Long = unit.convert(max.get(), TimeUnit.NANOSECONDS)
+
+    /**
+     * Gets a percentile (0-100) of the recorded values, or 0 if nothing was recorded.
+     */
+    fun getPercentile(percentile: Double, unit: TimeUnit): Long {
+        val total = (0..(counts.length() - 1)).sumByLong { counts.get(it) } //Consistent with the buckets being read
+        if (total == 0L) return 0
+
+        val target = Math.max(1, Math.ceil(percentile / 100.0 * total).toLong())
+        var seen = 0L
+        for (i in 0..(counts.length() - 1)) {
+            seen += counts.get(i)
+            if (seen >= target) return unit.convert(Math.min(valueOf(i), max.get()), TimeUnit.NANOSECONDS)
+        }
+        return getMax(unit)
+    }
+
+    fun reset() {
+        for (i in 0..(counts.length() - 1)) counts.set(i, 0)
+        count.reset()
+        sum.reset()
+        max.set(0)
+    }
+
+    private fun indexOf(value: Long): Int {
+        if (value < SUB_BUCKETS) return value.toInt()
+
+        val bucket = 64 - java.lang.Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS //Values in [64, 128) << bucket
+        val subBucket = (value ushr bucket).toInt() - HALF_SUB_BUCKETS
+        return SUB_BUCKETS + (bucket - 1) * HALF_SUB_BUCKETS + subBucket
+    }
+
+    /**
+     * Gets the highest value which is counted in the provided bucket.
+     */
+    private fun valueOf(index: Int): Long {
+        if (index < SUB_BUCKETS) return index.toLong()
+
+        val bucket = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1
+        val subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS
+        return ((subBucket + 1).toLong() shl bucket) - 1
+    }
+
+    private inline fun IntRange.sumByLong(selector: (Int) -> Long): Long {
+        var sum = 0L
+        for (i in this) sum += selector(i)
+        return sum
+    }
+}
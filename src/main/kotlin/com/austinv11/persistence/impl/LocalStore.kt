@@ -2,25 +2,57 @@ package com.austinv11.persistence.impl
 
 import com.austinv11.persistence.PersistenceManager
 import com.austinv11.persistence.Store
-import java.util.concurrent.ConcurrentHashMap
+import com.austinv11.persistence.internal.HashTrie
+import com.austinv11.persistence.internal.TrieValues
+import com.austinv11.persistence.internal.parallelMap
+import java.util.concurrent.atomic.AtomicReference
 
 /**
- * A [Store] implementation which is backed by a [ConcurrentHashMap].
+ * A [Store] implementation which is backed by a [HashTrie]. Every change swaps in a new version of the trie, so reads 
+ * and iteration never block writers and always see the store at a single point in time (see [snapshot]).
  */
 class LocalStore<T: Any>(val persistenceManager: PersistenceManager) : Store<T> {
     
-    private val backing = ConcurrentHashMap<Long, T>()
+    private val backing = AtomicReference(HashTrie.empty<T>())
+
+    /**
+     * Swaps in the version of the trie produced by the change (retrying it if another change won the race).
+     */
+    private inline fun change(change: (HashTrie<T>) -> HashTrie<T>) {
+        while (true) {
+            val current = backing.get()
+            val next = change(current)
+            if (next === current || backing.compareAndSet(current, next)) return
+        }
+    }
     
     override fun insert(obj: T): T? {
-        return backing.put(persistenceManager.generateHash(obj), obj)
+        val hash = persistenceManager.generateHash(obj)
+        var replaced: T? = null
+        change { replaced = it[hash]; it.put(hash, obj) }
+        return replaced
     }
 
     override fun insertQuietly(obj: T): T? {
         return insert(obj)
     }
 
+    override fun insertAll(objects: Collection<T>) {
+        val list = objects as? List<T> ?: objects.toList()
+        val hashes = list.parallelMap { persistenceManager.generateHash(it) }
+        change { 
+            var trie = it
+            for (i in list.indices) trie = trie.put(hashes[i], list[i])
+            trie //The whole batch becomes visible at once
+        }
+    }
+
+    override fun insertAllQuietly(objects: Collection<T>) {
+        insertAll(objects)
+    }
+
     override fun remove(obj: T): Boolean {
-        return backing.remove(persistenceManager.generateHash(obj)) != null
+        return removeHash(persistenceManager.generateHash(obj))
     }
 
     override fun removeQuietly(obj: T): Boolean {
@@ -28,7 +60,9 @@ class LocalStore<T: Any>(val persistenceManager: PersistenceManager) : Store<T>
     }
 
     override fun removeHash(hash: Long): Boolean {
-        return backing.remove(hash) != null
+        var removed = false
+        change { removed = it.containsKey(hash); it.remove(hash) }
+        return removed
     }
 
     override fun removeHashQuietly(hash: Long): Boolean {
@@ -36,15 +70,15 @@ class LocalStore<T: Any>(val persistenceManager: PersistenceManager) : Store<T>
     }
 
     override fun contains(obj: T): Boolean {
-        return backing.containsKey(persistenceManager.generateHash(obj))
+        return containsHash(persistenceManager.generateHash(obj))
     }
 
     override fun containsHash(hash: Long): Boolean {
-        return backing.containsKey(hash)
+        return backing.get().containsKey(hash)
     }
 
     override fun get(hash: Long): T? {
-        return backing[hash]
+        return backing.get()[hash]
     }
 
     override fun update(originalHash: Long, obj: T, hint: Pair<Class<*>, String>): T? {
@@ -52,17 +86,21 @@ class LocalStore<T: Any>(val persistenceManager: PersistenceManager) : Store<T>
     }
 
     override fun updateQuietly(originalHash: Long, obj: T): T? {
-        if (!containsHash(originalHash)) throw NoSuchElementException()
-
-        return backing.remove(originalHash).also { insert(obj) }
+        val hash = persistenceManager.generateHash(obj)
+        var original: T? = null
+        change { 
+            original = it[originalHash] ?: throw NoSuchElementException()
+            it.remove(originalHash).put(hash, obj) //Never seen removed
+        }
+        return original
     }
 
     override fun size(): Int {
-        return backing.size
+        return backing.get().size
     }
 
     override fun clear() {
-        backing.clear()
+        backing.set(HashTrie.empty())
     }
 
     override fun clearQuietly() {
@@ -70,10 +108,23 @@ class LocalStore<T: Any>(val persistenceManager: PersistenceManager) : Store<T>
     }
 
     override fun collect(): MutableCollection<T> {
-        return backing.values
+        return snapshot()
+    }
+
+    override fun snapshot(): MutableCollection<T> {
+        return TrieValues(backing.get())
     }
 
     override fun iterator(): MutableIterator<T> {
-        return backing.values.iterator()
+        val iterator = backing.get().iterator()
+        return object : MutableIterator<T> {
+            override fun hasNext() = iterator.hasNext()
+
+            override fun next() = iterator.next()
+
+            override fun remove() {
+                removeHash(iterator.key)
+            }
+        }
     }
 }
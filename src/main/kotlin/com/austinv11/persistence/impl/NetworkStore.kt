@@ -2,35 +2,143 @@ package com.austinv11.persistence.impl
 
 import com.austinv11.persistence.PersistenceManager
 import com.austinv11.persistence.Store
+import com.austinv11.persistence.internal.CREATED_PATH
+import com.austinv11.persistence.internal.CollectionDelta
+import com.austinv11.persistence.internal.DELTA_PREFIX
+import com.austinv11.persistence.internal.Deferred
+import com.austinv11.persistence.internal.EXT_BULK
+import com.austinv11.persistence.internal.MAX_BULK_HASHES
 import com.austinv11.persistence.internal.Payload
-import com.austinv11.persistence.internal.TwoWaySocket
+import com.austinv11.persistence.internal.Stamp
+import com.austinv11.persistence.internal.Transport
+import com.austinv11.persistence.internal.changeOf
+import com.austinv11.persistence.internal.touched
+import com.austinv11.persistence.internal.tracking
+import com.austinv11.persistence.internal.detached
+import com.austinv11.persistence.internal.logClear
+import com.austinv11.persistence.internal.logDeferred
+import com.austinv11.persistence.internal.logPut
+import com.austinv11.persistence.internal.logRemove
 import com.austinv11.persistence.map
+import com.austinv11.persistence.matchProperties
 import com.austinv11.persistence.unwrapObject
-import kotlinx.coroutines.experimental.CommonPool
 import kotlinx.coroutines.experimental.launch
-import kotlinx.coroutines.experimental.runBlocking
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.function.Predicate
 
 /**
  * This represents a [Store] which manages the network.
  */
 class NetworkStore<T: Any>(private val localStore: Store<T>,
-                           private val socket: TwoWaySocket,
-                           private val manager: PersistenceManager = socket.context) : Store<T> {
+                           private val transport: Transport,
+                           private val manager: PersistenceManager = transport.context,
+                           private val type: Class<T>? = null) : Store<T> {
+
+    private val outbox = ConcurrentLinkedQueue<Payload>()
+    private val sending = AtomicBoolean()
+    private val deferred = ConcurrentHashMap<Long, Deferred>()
+    /**
+     * The stamp of the last clear of the type, received creations older than it are discarded.
+     */
+    @Volatile internal var lastClear: Stamp? = null
+        private set
+    /**
+     * Creations and clears are stamped and applied under this lock, so a creation is either older than a clear (and 
+     * removed by it) or newer (and kept) on every node.
+     */
+    internal val clearLock = Any()
+
+    internal fun cleared(stamp: Stamp) = synchronized(clearLock) {
+        if (lastClear.let { it == null || stamp > it }) lastClear = stamp
+    }
+
+    /**
+     * Broadcasts payloads in the order they were queued (by at most one coroutine at a time), so peers apply changes
+     * made in place to collections in the order they were made.
+     */
+    private fun enqueue(payload: Payload) {
+        outbox += payload
+        if (sending.compareAndSet(false, true))
+            launch(manager.encode) { drain() }
+    }
+
+    private suspend fun drain() {
+        while (true) {
+            while (true) {
+                transport.broadcast(outbox.poll() ?: break)
+            }
+            sending.set(false)
+            if (outbox.isEmpty() || !sending.compareAndSet(false, true)) return //Another drain picked it up
+        }
+    }
+    
+    /**
+     * Stores a received object without decoding it, it is decoded and moved to the local store when it is first 
+     * accessed.
+     */
+    internal fun defer(hash: Long, entry: Deferred) {
+        if (manager.tracking) manager.touched(hash)
+        deferred[hash] = entry
+        manager.logDeferred(entry)
+    }
+
+    private fun materialize(hash: Long): T? {
+        val entry = deferred[hash] ?: return null
+        synchronized(entry) {
+            if (deferred[hash] === entry) { //Not materialized or removed in the meantime
+                val obj = entry.value as T
+                localStore.insert(obj)
+                entry.key?.let { manager.replicas.of(obj, it).restore(entry.stamps ?: emptyList<Any>()) }
+                deferred.remove(hash, entry)
+            }
+            return localStore.get(hash)
+        }
+    }
+
+    private fun materializeAll() {
+        if (deferred.isEmpty()) return
+        deferred.keys.forEach { materialize(it) }
+    }
     
     override fun insert(obj: T): T? {
         val obj = obj.unwrapObject()
-        launch(CommonPool) {
-            socket.connections.forEach {
-                it.send(Payload.Creation(d = obj.map(manager), h = manager.generateHash(obj)))
-            }
+        synchronized(clearLock) {
+            enqueue(creationOf(obj))
+            return insertQuietly(obj)
         }
-        
-        return insertQuietly(obj)
+    }
+
+    /**
+     * Stamps the creation of an object, so it survives concurrent clears of its type which are older.
+     */
+    private fun creationOf(obj: T): Payload.Creation {
+        val hash = manager.generateHash(obj)
+        val time = manager.clock.now()
+        manager.replicas.of(obj, hash).record(CREATED_PATH, Stamp(time, manager.nodeId))
+        return Payload.Creation(d = obj.map(manager).detached(), h = hash, id = manager.nextMessageId(), c = time)
     }
 
     override fun insertQuietly(obj: T): T? {
         val obj = obj.unwrapObject()
-        return localStore.insert(obj)
+        if (manager.tracking) manager.touched(manager.generateHash(obj))
+        return localStore.insert(obj).also { manager.logPut(obj.javaClass, listOf(obj)) }
+    }
+
+    override fun insertAll(objects: Collection<T>) {
+        val objects = objects.map { it.unwrapObject() }
+        synchronized(clearLock) {
+            objects.forEach { enqueue(creationOf(it)) }
+            insertAllQuietly(objects)
+        }
+    }
+
+    override fun insertAllQuietly(objects: Collection<T>) {
+        val objects = objects.map { it.unwrapObject() }
+        if (manager.tracking) objects.forEach { manager.touched(manager.generateHash(it)) }
+        localStore.insertAll(objects)
+        if (manager.wal != null) objects.groupBy { it.javaClass }.forEach { manager.logPut(it.key, it.value) }
     }
 
     override fun remove(obj: T): Boolean {
@@ -39,75 +147,143 @@ class NetworkStore<T: Any>(private val localStore: Store<T>,
     }
 
     override fun removeHash(hash: Long): Boolean {
-        launch(CommonPool) {
-            socket.connections.forEach {
-                it.send(Payload.Removal(h = hash))
-            }
-        }
+        enqueue(Payload.Removal(h = hash, id = manager.nextMessageId(), k = keyOf(hash)))
         
         return removeHashQuietly(hash)
     }
 
+    private fun keyOf(hash: Long): Long? = localStore.get(hash)?.let { manager.replicas.find(it)?.key } ?: deferred[hash]?.key
+
+    override fun removeAll(hashes: Collection<Long>): Int {
+        val hashes = hashes as? List<Long> ?: hashes.toList()
+        for (from in 0..(hashes.size - 1) step MAX_BULK_HASHES) {
+            val chunk = hashes.subList(from, Math.min(from + MAX_BULK_HASHES, hashes.size))
+            val keys = chunk.map { keyOf(it) }
+            enqueue(Payload.BulkRemoval(chunk, if (keys.all { it == null }) null else keys, manager.nextMessageId()))
+        }
+        
+        return removeAllQuietly(hashes)
+    }
+
+    override fun removeIf(filter: Predicate<in T>): Int {
+        return removeAll(collect().filter { filter.test(it) }.map { manager.generateHash(it) })
+    }
+
     override fun removeQuietly(obj: T): Boolean {
         val obj = obj.unwrapObject()
         return removeHashQuietly(manager.generateHash(obj))
     }
 
     override fun removeHashQuietly(hash: Long): Boolean {
-        return localStore.removeHash(hash)
+        return removeHashQuietly(hash, true)
+    }
+
+    private fun removeHashQuietly(hash: Long, log: Boolean): Boolean {
+        if (manager.tracking) manager.touched(hash)
+        val removed = if (deferred.remove(hash) != null) true else {
+            localStore.get(hash)?.let { manager.replicas.forget(it) }
+            localStore.removeHash(hash)
+        }
+        if (removed && log) manager.logRemove(type, listOf(hash))
+        return removed
+    }
+
+    override fun removeAllQuietly(hashes: Collection<Long>): Int {
+        val removed = hashes.filter { removeHashQuietly(it, false) }
+        manager.logRemove(type, removed) //As a single record
+        return removed.size
     }
 
     override fun contains(obj: T): Boolean {
         val obj = obj.unwrapObject()
-        return localStore.contains(obj)
+        return localStore.contains(obj) || (deferred.isNotEmpty() && deferred.containsKey(manager.generateHash(obj)))
     }
 
     override fun containsHash(hash: Long): Boolean {
-        return localStore.containsHash(hash)
+        return localStore.containsHash(hash) || deferred.containsKey(hash)
     }
 
     override fun get(hash: Long): T? {
-        return localStore.get(hash)
+        return localStore.get(hash) ?: materialize(hash)
     }
 
     override fun update(originalHash: Long, obj: T, hint: Pair<Class<*>, String>): T? {
         val obj = obj.unwrapObject()
-        launch(CommonPool) {
-            val map = obj.map(manager).filterKeys { it == hint.second }
-            socket.connections.forEach { 
-                it.send(Payload.Change(d = map, h = manager.generateHash(obj), oh = originalHash))
-            }
-        }
+        val replica = manager.replicas.of(obj, originalHash)
+        val time = manager.clock.now()
+        replica.record(hint.second, Stamp(time, manager.nodeId))
+        enqueue(Payload.Change(d = manager.changeOf(obj, hint.second).detached(), h = manager.generateHash(obj), oh = originalHash, 
+                id = manager.nextMessageId(), k = replica.key, c = time))
+        return updateQuietly(originalHash, obj)
+    }
+
+    /**
+     * Like [update], but only the operation applied to a collection property is sent (to peers which support it).
+     */
+    internal fun update(originalHash: Long, obj: T, delta: CollectionDelta): T? {
+        val obj = obj.unwrapObject()
+        val replica = manager.replicas.of(obj, originalHash)
+        val time = manager.clock.now()
+        replica.record(DELTA_PREFIX + delta.path, Stamp(time, manager.nodeId))
+        enqueue(Payload.Change(d = delta, h = manager.generateHash(obj), oh = originalHash, id = manager.nextMessageId(), 
+                k = replica.key, c = time))
         return updateQuietly(originalHash, obj)
     }
 
     override fun updateQuietly(originalHash: Long, obj: T): T? {
         val obj = obj.unwrapObject()
-        return localStore.updateQuietly(originalHash, obj)
+        if (manager.tracking) {
+            manager.touched(originalHash)
+            manager.touched(manager.generateHash(obj))
+        }
+        return localStore.updateQuietly(originalHash, obj).also { manager.logPut(obj.javaClass, listOf(obj), originalHash) }
     }
 
     override fun size(): Int {
-        return localStore.size()
+        return localStore.size() + deferred.size
     }
 
     override fun iterator(): MutableIterator<T> {
+        materializeAll()
         return localStore.iterator()
     }
 
     override fun clear() {
-        runBlocking {
-            socket.connections.forEach {
-                it.send(Payload.Removal(h = manager.generateHash(it)))
-            }
+        if (type == null) {
+            removeAll(collect().map { manager.generateHash(it) })
+            return
+        }
+        
+        synchronized(clearLock) {
+            val legacy = transport.connections.any { EXT_BULK !in it.extensions } //Only they need every hash
+            val removed = if (legacy) collect().map { manager.generateHash(it) } else null
+            val stamp = Stamp(manager.clock.now(), manager.nodeId)
+            cleared(stamp)
+            enqueue(Payload.BulkRemoval(type, manager.matchProperties(type).map { it.name }, manager.typeHash(type), stamp,
+                    removed, manager.nextMessageId()))
+            clearQuietly()
         }
-        clearQuietly()
     }
 
     override fun clearQuietly() {
+        val hashes = if (manager.wal != null && type == null) deferred.keys + localStore.map { manager.generateHash(it) } else null
+        if (manager.tracking) {
+            deferred.keys.forEach { manager.touched(it) }
+            localStore.forEach { manager.touched(manager.generateHash(it)) }
+        }
+        deferred.clear()
+        localStore.forEach { manager.replicas.forget(it) }
         localStore.clearQuietly()
+        if (type != null) manager.logClear(type) else hashes?.let { manager.logRemove(null, it) }
     }
 
     override fun collect(): MutableCollection<T> {
+        materializeAll()
         return localStore.collect()
     }
+
+    override fun snapshot(): MutableCollection<T> {
+        materializeAll()
+        return localStore.snapshot()
+    }
 }
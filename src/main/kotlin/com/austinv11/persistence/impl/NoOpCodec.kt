@@ -0,0 +1,15 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.Codec
+
+/**
+ * This does no compression, frames are always sent raw.
+ */
+class NoOpCodec : Codec {
+    
+    override fun getKey(): Byte = 0
+
+    override fun compress(input: ByteArray): ByteArray = input
+
+    override fun decompress(input: ByteArray): ByteArray = input
+}
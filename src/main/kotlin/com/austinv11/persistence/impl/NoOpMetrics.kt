@@ -0,0 +1,19 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.Connection
+import com.austinv11.persistence.Metrics
+import com.austinv11.persistence.OpCode
+
+/**
+ * This discards all metrics, nothing is timed when this is installed.
+ */
+class NoOpMetrics : Metrics {
+
+    override fun sent(connection: Connection, op: OpCode, bytes: Int) {}
+
+    override fun received(connection: Connection, op: OpCode?, bytes: Int) {}
+
+    override fun timed(timing: Metrics.Timing, nanos: Long) {}
+
+    override fun queued(connection: Connection, depth: Int) {}
+}
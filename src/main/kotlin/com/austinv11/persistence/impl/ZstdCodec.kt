@@ -0,0 +1,38 @@
+package com.austinv11.persistence.impl
+
+import com.austinv11.persistence.Codec
+import com.github.luben.zstd.Zstd
+
+/**
+ * This compresses frames with zstd, which is slower than [LZ4Codec] but compresses large frames (such as INITIALIZE)
+ * considerably better.
+ * 
+ * NOTE: This requires `com.github.luben:zstd-jni` to be on the classpath.
+ */
+class ZstdCodec @JvmOverloads constructor(val level: Int = 3) : Codec {
+    
+    init {
+        if (!isAvailable) throw IllegalStateException("zstd-jni is not on the classpath!")
+    }
+    
+    override fun getKey(): Byte = 2
+
+    override fun compress(input: ByteArray): ByteArray = Zstd.compress(input, level) //The zstd frame records the original size
+
+    override fun decompress(input: ByteArray): ByteArray = Zstd.decompress(input, Zstd.decompressedSize(input).toInt())
+    
+    companion object {
+        
+        /**
+         * Whether zstd-jni is on the classpath.
+         */
+        @JvmStatic val isAvailable: Boolean by lazy {
+            try {
+                Class.forName("com.github.luben.zstd.Zstd")
+                true
+            } catch (e: Throwable) {
+                false
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.Property
+import com.austinv11.persistence.fastInstance
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.matchProperties
+import org.msgpack.core.MessageUnpacker
+import org.msgpack.value.ValueType
+import java.lang.invoke.LambdaMetafactory
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+/*
+ * These are implemented via LambdaMetafactory so setters are invoked directly (and primitives are passed unboxed) rather
+ * than through MethodHandle#invokeWithArguments.
+ */
+internal interface ObjectSetter { fun set(instance: Any, value: Any?) }
+internal interface IntSetter { fun set(instance: Any, value: Int) }
+internal interface LongSetter { fun set(instance: Any, value: Long) }
+internal interface FloatSetter { fun set(instance: Any, value: Float) }
+internal interface DoubleSetter { fun set(instance: Any, value: Double) }
+internal interface BooleanSetter { fun set(instance: Any, value: Boolean) }
+
+/**
+ * This decodes a single property's value from an unpacker directly into an instance. Values which don't have the
+ * expected msgpack type are unpacked generically and set through the property's method handle instead (which applies
+ * the usual conversions).
+ */
+internal abstract class PropertyDecoder(val property: Property<*>) {
+
+    abstract fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager)
+
+    fun set(instance: Any, value: Any?) {
+        if (value == null && property.type.isPrimitive) return //Leave the default value
+
+        property.setter.invokeWithArguments(instance, value)
+    }
+
+    protected fun decodeGenerically(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        set(instance, unpacker.unpackAny(context))
+    }
+}
+
+private class IntDecoder(property: Property<*>, val setter: IntSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        if (unpacker.nextFormat.valueType == ValueType.INTEGER) setter.set(instance, unpacker.unpackInt())
+        else decodeGenerically(unpacker, instance, context)
+    }
+}
+
+private class LongDecoder(property: Property<*>, val setter: LongSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        if (unpacker.nextFormat.valueType == ValueType.INTEGER) setter.set(instance, unpacker.unpackLong())
+        else decodeGenerically(unpacker, instance, context)
+    }
+}
+
+private class FloatDecoder(property: Property<*>, val setter: FloatSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        if (unpacker.nextFormat.valueType == ValueType.FLOAT) setter.set(instance, unpacker.unpackFloat())
+        else decodeGenerically(unpacker, instance, context)
+    }
+}
+
+private class DoubleDecoder(property: Property<*>, val setter: DoubleSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        when (unpacker.nextFormat.valueType) {
+            ValueType.FLOAT -> setter.set(instance, unpacker.unpackDouble())
+            ValueType.INTEGER -> setter.set(instance, unpacker.unpackLong().toDouble())
+            else -> decodeGenerically(unpacker, instance, context)
+        }
+    }
+}
+
+private class BooleanDecoder(property: Property<*>, val setter: BooleanSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        if (unpacker.nextFormat.valueType == ValueType.BOOLEAN) setter.set(instance, unpacker.unpackBoolean())
+        else decodeGenerically(unpacker, instance, context)
+    }
+}
+
+private class StringDecoder(property: Property<*>, val setter: ObjectSetter) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        if (unpacker.nextFormat.valueType == ValueType.STRING) setter.set(instance, unpacker.unpackInterned(context.interner?.takeIf { property.name in context.internedProperties }))
+        else decodeGenerically(unpacker, instance, context)
+    }
+}
+
+private class ObjectDecoder(property: Property<*>, val setter: ObjectSetter?) : PropertyDecoder(property) {
+    override fun decode(unpacker: MessageUnpacker, instance: Any, context: PersistenceManager) {
+        val value = context.nested(unpacker.unpackAny(context), property.type)
+        if (setter != null && (value == null || property.type.isInstance(value))) setter.set(instance, value)
+        else set(instance, value)
+    }
+}
+
+/**
+ * This decodes objects of a single type. It caches the type's properties (so they only need to be matched once) and
+ * decodes positional object data straight into a new instance without building an intermediate map.
+ */
+internal class ClassDecoder(val type: Class<*>, val properties: List<Property<*>>) {
+
+    private val decoders = properties.associate { it.name to decoderFor(it) }
+
+    /**
+     * Gets the decoders for the provided property order, properties which don't exist locally are null.
+     */
+    fun positional(names: List<String>): Array<PropertyDecoder?> = names.map { decoders[it] }.toTypedArray()
+
+    /**
+     * Decodes the next `count` values positionally into a new instance.
+     */
+    fun decode(unpacker: MessageUnpacker, context: PersistenceManager, positional: Array<PropertyDecoder?>, count: Int): Any {
+        val instance = type.fastInstance()
+        for (i in 0..(count - 1)) {
+            val decoder = if (i < positional.size) positional[i] else null
+            if (decoder == null)
+                unpacker.skipValue() //Unknown property
+            else
+                decoder.decode(unpacker, instance, context)
+        }
+        return instance
+    }
+
+    /**
+     * Sets already unpacked values by property name, nested objects are only materialized if a context is provided.
+     */
+    @JvmOverloads fun decode(map: Map<String, Any?>, context: PersistenceManager? = null): Any {
+        val instance = type.fastInstance()
+        map.forEach { k, v -> decoders[k]?.let { it.set(instance, if (context != null) context.nested(v, it.property.type) else v) } }
+        return instance
+    }
+}
+
+internal fun PersistenceManager.decoderFor(type: Class<*>): ClassDecoder {
+    return decoders.computeIfAbsent(type) { ClassDecoder(it, matchProperties(it as Class<Any>)) }
+}
+
+private val lookup = MethodHandles.lookup()
+
+private fun decoderFor(property: Property<*>): PropertyDecoder {
+    return when (property.type) {
+        Int::class.javaPrimitiveType -> property.lambda(IntSetter::class.java)?.let { IntDecoder(property, it) }
+        Long::class.javaPrimitiveType -> property.lambda(LongSetter::class.java)?.let { LongDecoder(property, it) }
+        Float::class.javaPrimitiveType -> property.lambda(FloatSetter::class.java)?.let { FloatDecoder(property, it) }
+        Double::class.javaPrimitiveType -> property.lambda(DoubleSetter::class.java)?.let { DoubleDecoder(property, it) }
+        Boolean::class.javaPrimitiveType -> property.lambda(BooleanSetter::class.java)?.let { BooleanDecoder(property, it) }
+        String::class.java -> property.lambda(ObjectSetter::class.java)?.let { StringDecoder(property, it) }
+        else -> null
+    } ?: ObjectDecoder(property, if (property.type.isPrimitive) null else property.lambda(ObjectSetter::class.java))
+}
+
+/**
+ * Spins an implementation of the provided setter interface which directly invokes the property's setter, or returns
+ * null if that isn't possible (i.e. the declaring class isn't visible from this class loader).
+ */
+private fun <T> Property<*>.lambda(setterType: Class<T>): T? {
+    try {
+        val info = lookup.revealDirect(setter)
+        val declaring = info.declaringClass
+        if (Class.forName(declaring.name, false, ClassDecoder::class.java.classLoader) != declaring) return null
+
+        val sam = setterType.methods.first { it.name == "set" }
+        val samType = MethodType.methodType(Void.TYPE, sam.parameterTypes)
+        val site = LambdaMetafactory.metafactory(lookup, "set", MethodType.methodType(setterType), samType, setter,
+                setter.type().changeReturnType(Void.TYPE))
+        return setterType.cast(site.target.invokeWithArguments())
+    } catch (e: Throwable) {
+        logger.trace("Unable to generate a direct setter for {}, falling back to method handles", name, e)
+        return null
+    }
+}
@@ -0,0 +1,297 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.map
+
+/**
+ * The key which collection deltas are sent under in CHANGE payloads, the value is `[path, op, args...]`.
+ */
+internal const val DELTA_KEY = "@delta"
+
+/**
+ * These are the operations of collection deltas, along with the arguments they carry.
+ * 
+ * Only [ADD] (to sets), [REMOVE], [PUT], [REMOVE_KEY] and [CLEAR] commute. The index based operations ([INSERT], [SET] and
+ * [REMOVE_AT]) and appends to lists are applied as they arrive, so concurrent ones from different nodes can leave the 
+ * list's elements in a different order (or a different element at an index) on each node.
+ */
+internal enum class DeltaOp {
+    /**
+     * `[value]`, appends to a list or adds to a set.
+     */
+    ADD,
+    /**
+     * `[index, value]`
+     */
+    INSERT,
+    /**
+     * `[index, value]`
+     */
+    SET,
+    /**
+     * `[index]`
+     */
+    REMOVE_AT,
+    /**
+     * `[value]`, removes from a set.
+     */
+    REMOVE,
+    /**
+     * `[key, value]`
+     */
+    PUT,
+    /**
+     * `[key]`
+     */
+    REMOVE_KEY,
+    /**
+     * `[]`
+     */
+    CLEAR
+}
+
+/**
+ * This is a change of a collection (or map) property, expressed as the operation which was applied to it. It is a
+ * (read-only) [Map] in the wire format so it can be forwarded and copied like any other change.
+ *
+ * @param full Gets the whole property (as a regular change) for peers which didn't negotiate [EXT_DELTAS].
+ */
+internal class CollectionDelta(val path: String,
+                               val op: DeltaOp,
+                               val args: List<Any?>,
+                               val full: () -> Map<String, Any?>) : AbstractMap<String, Any?>() {
+
+    override val entries: Set<Map.Entry<String, Any?>>
+        get() = setOf(java.util.AbstractMap.SimpleImmutableEntry(DELTA_KEY, listOf(path, op.ordinal) + args))
+}
+
+/**
+ * This records (and then applies) an operation on a tracked collection.
+ */
+internal interface DeltaRecorder {
+
+    fun <R> record(op: DeltaOp, args: List<Any?>, mutation: () -> R): R
+}
+
+/**
+ * Gets the change for a property (or property path) of an object, carrying the property's whole value.
+ */
+internal fun PersistenceManager.changeOf(obj: Any, path: String): Map<String, Any?> {
+    return if (PATH_SEPARATOR in path) //A nested property, only send its path and value
+        mapOf(path to mapNested(valueAt(obj, path)))
+    else
+        obj.map(this).only(path)
+}
+
+/**
+ * Copies the collections and maps in change data, so changes which are later made to them in place (and sent as
+ * deltas) can't leak into the data before it is sent.
+ */
+internal fun Map<String, Any?>.detached(): Map<String, Any?> {
+    if (this !is ObjectData) return mapValues { it.value.detached() }
+
+    val values = propertyValues
+    for (i in values.indices) values[i] = values[i].detached()
+    return this
+}
+
+private fun Any?.detached(): Any? {
+    val value = this
+    return when (value) {
+        is Map<*, *> -> value.entries.associateTo(LinkedHashMap(value.size)) { it.key to it.value.detached() }
+        is Set<*> -> value.mapTo(LinkedHashSet(value.size)) { it.detached() }
+        is List<*> -> value.mapTo(ArrayList(value.size)) { it.detached() }
+        else -> value
+    }
+}
+
+/**
+ * Replaces collection deltas in change data with the whole property, for peers which can't apply deltas.
+ *
+ * @param hash The hash of the changed object.
+ */
+internal fun PersistenceManager.withoutDelta(data: Map<String, Any?>, hash: Long?): Map<String, Any?> {
+    if (data is CollectionDelta) return data.full()
+    if (data is ObjectData || !data.containsKey(DELTA_KEY)) return data
+
+    val path = (data[DELTA_KEY] as List<*>)[0] as String //Forwarded, so the object must be looked up
+    val obj = stores.values.firstOrNull { hash != null && it.containsHash(hash) }?.get(hash!!) ?: return data
+    return changeOf(obj, path)
+}
+
+/**
+ * Applies a received collection delta to an object.
+ *
+ * @return False if the collection doesn't exist.
+ */
+internal fun PersistenceManager.applyDelta(obj: Any, delta: List<*>): Boolean {
+    val path = delta[0] as String
+    val op = DeltaOp.values()[(delta[1] as Number).toInt()]
+    val args = delta.subList(2, delta.size)
+    val target = valueAt(obj, path) ?: return false
+
+    try {
+        op.applyTo(target, args)
+    } catch (e: UnsupportedOperationException) { //Immutable, replace it with a mutable copy
+        logger.trace("Replacing immutable collection {} to apply a delta", path)
+        val copy: Any = when (target) {
+            is Set<*> -> LinkedHashSet(target)
+            is List<*> -> ArrayList(target)
+            is Map<*, *> -> LinkedHashMap(target)
+            else -> throw e
+        }
+        op.applyTo(copy, args)
+        return setPath(obj, path, copy)
+    }
+    return true
+}
+
+private fun DeltaOp.applyTo(target: Any, args: List<*>) {
+    @Suppress("UNCHECKED_CAST")
+    when (this) {
+        DeltaOp.ADD -> (target as MutableCollection<Any?>).add(args[0])
+        DeltaOp.INSERT -> (target as MutableList<Any?>).add((args[0] as Number).toInt(), args[1])
+        DeltaOp.SET -> (target as MutableList<Any?>)[(args[0] as Number).toInt()] = args[1]
+        DeltaOp.REMOVE_AT -> (target as MutableList<Any?>).removeAt((args[0] as Number).toInt())
+        DeltaOp.REMOVE -> (target as MutableCollection<Any?>).remove(args[0])
+        DeltaOp.PUT -> (target as MutableMap<Any?, Any?>).put(args[0], args[1])
+        DeltaOp.REMOVE_KEY -> (target as MutableMap<Any?, Any?>).remove(args[0])
+        DeltaOp.CLEAR -> if (target is MutableMap<*, *>) target.clear() else (target as MutableCollection<*>).clear()
+    }
+}
+
+/**
+ * Wraps a collection property value so that mutations are recorded, or returns null if the property's type can't be
+ * tracked (only [List], [Set], [Map] and their supertypes are). The recorder is only created for tracked values.
+ */
+internal inline fun track(value: Any?, type: Class<*>, recorder: () -> DeltaRecorder): Any? {
+    return when {
+        value is MutableList<*> && type.isAssignableFrom(List::class.java) -> TrackedList(value as MutableList<Any?>, recorder())
+        value is MutableSet<*> && type.isAssignableFrom(Set::class.java) -> TrackedSet(value as MutableSet<Any?>, recorder())
+        value is MutableMap<*, *> && type.isAssignableFrom(Map::class.java) -> TrackedMap(value as MutableMap<Any?, Any?>, recorder())
+        else -> null
+    }
+}
+
+internal class TrackedList<E>(val delegate: MutableList<E>, val recorder: DeltaRecorder) : AbstractMutableList<E>() {
+
+    override val size: Int
+        get() = delegate.size
+
+    override fun get(index: Int): E = delegate[index]
+
+    override fun add(index: Int, element: E) {
+        if (index == delegate.size)
+            recorder.record(DeltaOp.ADD, listOf(element)) { delegate.add(element) }
+        else
+            recorder.record(DeltaOp.INSERT, listOf(index, element)) { delegate.add(index, element) }
+    }
+
+    override fun set(index: Int, element: E): E = recorder.record(DeltaOp.SET, listOf(index, element)) { delegate.set(index, element) }
+
+    override fun removeAt(index: Int): E = recorder.record(DeltaOp.REMOVE_AT, listOf(index)) { delegate.removeAt(index) }
+
+    override fun clear() {
+        if (delegate.isNotEmpty())
+            recorder.record(DeltaOp.CLEAR, emptyList()) { delegate.clear() }
+    }
+}
+
+internal class TrackedSet<E>(val delegate: MutableSet<E>, val recorder: DeltaRecorder) : AbstractMutableSet<E>() {
+
+    override val size: Int
+        get() = delegate.size
+
+    override fun contains(element: E): Boolean = delegate.contains(element)
+
+    override fun add(element: E): Boolean {
+        if (delegate.contains(element)) return false
+        return recorder.record(DeltaOp.ADD, listOf(element)) { delegate.add(element) }
+    }
+
+    override fun remove(element: E): Boolean {
+        if (!delegate.contains(element)) return false
+        return recorder.record(DeltaOp.REMOVE, listOf(element)) { delegate.remove(element) }
+    }
+
+    override fun clear() {
+        if (delegate.isNotEmpty())
+            recorder.record(DeltaOp.CLEAR, emptyList()) { delegate.clear() }
+    }
+
+    override fun iterator(): MutableIterator<E> {
+        val iterator = delegate.iterator()
+        return object : MutableIterator<E> {
+            var last: E? = null
+
+            override fun hasNext(): Boolean = iterator.hasNext()
+
+            override fun next(): E = iterator.next().also { last = it }
+
+            override fun remove() {
+                recorder.record(DeltaOp.REMOVE, listOf(last)) { iterator.remove() }
+            }
+        }
+    }
+}
+
+internal class TrackedMap<K, V>(val delegate: MutableMap<K, V>, val recorder: DeltaRecorder) : AbstractMutableMap<K, V>() {
+
+    override val size: Int
+        get() = delegate.size
+
+    override fun get(key: K): V? = delegate[key]
+
+    override fun containsKey(key: K): Boolean = delegate.containsKey(key)
+
+    override fun put(key: K, value: V): V? = recorder.record(DeltaOp.PUT, listOf(key, value)) { delegate.put(key, value) }
+
+    override fun remove(key: K): V? {
+        if (!delegate.containsKey(key)) return null
+        return recorder.record(DeltaOp.REMOVE_KEY, listOf(key)) { delegate.remove(key) }
+    }
+
+    override fun clear() {
+        if (delegate.isNotEmpty())
+            recorder.record(DeltaOp.CLEAR, emptyList()) { delegate.clear() }
+    }
+
+    override val entries: MutableSet<MutableMap.MutableEntry<K, V>>
+        get() = object : AbstractMutableSet<MutableMap.MutableEntry<K, V>>() {
+            override val size: Int
+                get() = delegate.size
+
+            override fun add(element: MutableMap.MutableEntry<K, V>): Boolean = throw UnsupportedOperationException()
+
+            override fun iterator(): MutableIterator<MutableMap.MutableEntry<K, V>> {
+                val iterator = delegate.entries.iterator()
+                return object : MutableIterator<MutableMap.MutableEntry<K, V>> {
+                    var last: MutableMap.MutableEntry<K, V>? = null
+
+                    override fun hasNext(): Boolean = iterator.hasNext()
+
+                    override fun next(): MutableMap.MutableEntry<K, V> {
+                        val entry = iterator.next()
+                        last = entry
+                        return object : MutableMap.MutableEntry<K, V> {
+                            override val key: K
+                                get() = entry.key
+                            override val value: V
+                                get() = entry.value
+
+                            override fun setValue(newValue: V): V = recorder.record(DeltaOp.PUT, listOf(entry.key, newValue)) { entry.setValue(newValue) }
+
+                            override fun equals(other: Any?): Boolean = entry == other
+
+                            override fun hashCode(): Int = entry.hashCode()
+                        }
+                    }
+
+                    override fun remove() {
+                        recorder.record(DeltaOp.REMOVE_KEY, listOf(last!!.key)) { iterator.remove() }
+                    }
+                }
+            }
+        }
+}
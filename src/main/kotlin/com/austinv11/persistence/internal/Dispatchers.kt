@@ -0,0 +1,55 @@
+package com.austinv11.persistence.internal
+
+import kotlinx.coroutines.experimental.CoroutineDispatcher
+import java.util.concurrent.Executor
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.experimental.CoroutineContext
+
+/**
+ * The default executor for blocking I/O, connections block a thread each for as long as they are open so this must
+ * not be bounded (or shared with CPU bound work).
+ */
+internal val DEFAULT_IO_DISPATCHER: CoroutineDispatcher by lazy {
+    Executors.newCachedThreadPool(DaemonThreadFactory("Persistence I/O")).asDispatcher()
+}
+
+/**
+ * This runs coroutines on an arbitrary [Executor].
+ */
+internal class ExecutorDispatcher(val executor: Executor) : CoroutineDispatcher() {
+
+    override fun dispatch(context: CoroutineContext, block: Runnable) {
+        executor.execute(block)
+    }
+
+    override fun toString(): String = executor.toString()
+}
+
+internal fun Executor.asDispatcher(): CoroutineDispatcher = ExecutorDispatcher(this)
+
+/**
+ * Creates an executor which starts a new virtual thread per task, this requires JDK 21+.
+ *
+ * @throws UnsupportedOperationException If virtual threads aren't available.
+ */
+internal fun newVirtualThreadExecutor(): ExecutorService {
+    try {
+        return Executors::class.java.getMethod("newVirtualThreadPerTaskExecutor").invoke(null) as ExecutorService
+    } catch (e: NoSuchMethodException) {
+        throw UnsupportedOperationException("Virtual threads require JDK 21+ (running ${System.getProperty("java.version")})!", e)
+    }
+}
+
+private class DaemonThreadFactory(val name: String) : ThreadFactory {
+
+    private val count = AtomicInteger()
+
+    override fun newThread(runnable: Runnable): Thread {
+        val thread = Thread(runnable, "$name-${count.incrementAndGet()}")
+        thread.isDaemon = true
+        return thread
+    }
+}
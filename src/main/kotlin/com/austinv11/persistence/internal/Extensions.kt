@@ -0,0 +1,106 @@
+package com.austinv11.persistence.internal
+
+/**
+ * The metadata key which PPPP extensions are advertised under in IDENTIFY and OK payloads. Nodes which don't know about
+ * extensions simply see an extra metadata entry, so they can still connect (with no extensions enabled).
+ */
+internal const val EXTENSIONS_KEY = "__ext"
+
+/**
+ * Replicated payloads carry an origin and sequence number ("o" and "s") which allows duplicates to be dropped early.
+ */
+internal const val EXT_MESSAGE_IDS = "ids"
+
+/**
+ * Replicated payloads are disseminated through a Plumtree-style spanning tree (eager push) with IHAVE/GRAFT/PRUNE 
+ * payloads (lazy push) repairing it, rather than flooded over every link. Requires [EXT_MESSAGE_IDS].
+ */
+internal const val EXT_PLUMTREE = "plumtree"
+
+/**
+ * Frames are prefixed by a flag byte and compressed by a negotiated [com.austinv11.persistence.Codec] rather than always 
+ * using the LZ4 frame format. The IDENTIFY payload lists the supported codec keys under [CODECS_KEY] and the OK payload 
+ * responds with the selected one.
+ */
+internal const val EXT_CODECS = "codecs"
+internal const val CODECS_KEY = "__codecs"
+
+/**
+ * Object data is packed positionally according to a per-connection schema (established by SCHEMA payloads) rather than
+ * as maps keyed by property names.
+ */
+internal const val EXT_SCHEMAS = "schemas"
+
+/**
+ * Frames pass through a chain of [com.austinv11.persistence.FrameStage]s. The IDENTIFY payload lists the supported stage
+ * keys under [STAGES_KEY] and the OK payload responds with the (ordered) chain to use. Each side writes an empty frame
+ * when it starts sending frames through the chain (and lanes).
+ */
+internal const val EXT_STAGES = "stages"
+internal const val STAGES_KEY = "__stages"
+
+/**
+ * Frames are split into chunks which are tagged with a lane (a control lane plus data lanes picked by object type) so
+ * large frames don't hold up other traffic. Switched on together with the stages.
+ */
+internal const val EXT_LANES = "lanes"
+
+/**
+ * Changes made in place to collection (and map) properties are sent as the operation which was applied (see 
+ * [DELTA_KEY]) rather than as the whole property.
+ */
+internal const val EXT_DELTAS = "deltas"
+
+/**
+ * CHANGE payloads carry the key of the changed object ("k", see [Replica]) and a hybrid logical clock timestamp ("c"),
+ * which lets concurrent writes be resolved the same way on every node (the last writer wins, unless a
+ * [com.austinv11.persistence.MergeFunction] was set) and lets changes be applied after the object's hash changed. 
+ * INITIALIZE payloads carry the keys and timestamps of changed objects. Requires [EXT_MESSAGE_IDS].
+ */
+internal const val EXT_LWW = "lww"
+
+/**
+ * INITIALIZE payloads carry the hash of every object (under [HASHES_KEY]), so receivers can store objects without
+ * decoding them first (see [com.austinv11.persistence.PersistenceManager.setLazyMaterialization]).
+ */
+internal const val EXT_HASHES = "hashes"
+
+/**
+ * Many objects can be removed by a single BULK_REMOVAL payload, which lists their hashes (and keys) or clears a whole
+ * type. Peers which didn't negotiate it receive a REMOVAL payload per object instead.
+ */
+internal const val EXT_BULK = "bulk"
+
+/**
+ * New peers may be sent SEED payloads (blocks of a snapshot file, see [writeSnapshot]) rather than INITIALIZE payloads.
+ */
+internal const val EXT_SEED = "seed"
+
+/**
+ * The extensions supported by this implementation.
+ */
+internal val SUPPORTED_EXTENSIONS = listOf(EXT_MESSAGE_IDS, EXT_PLUMTREE, EXT_CODECS, EXT_SCHEMAS, EXT_STAGES, EXT_LANES, EXT_DELTAS, EXT_LWW, EXT_HASHES, EXT_BULK, EXT_SEED)
+
+private val RESERVED_KEYS = setOf(EXTENSIONS_KEY, CODECS_KEY, STAGES_KEY)
+
+/**
+ * Adds the provided extensions (and any negotiation parameters) to IDENTIFY/OK metadata.
+ */
+internal fun Map<String, Any?>?.advertise(extensions: Collection<String>, vararg parameters: Pair<String, Any?>): Map<String, Any?> {
+    return (this ?: emptyMap()) + (EXTENSIONS_KEY to extensions.toList()) + parameters
+}
+
+/**
+ * Reads the extensions advertised in IDENTIFY/OK metadata.
+ */
+internal fun Map<String, Any?>?.advertised(): Set<String> {
+    return (this?.get(EXTENSIONS_KEY) as? List<*>)?.filterIsInstance<String>()?.toSet() ?: emptySet()
+}
+
+/**
+ * Removes the extension advertisement from IDENTIFY/OK metadata so that [com.austinv11.persistence.ConnectionSpy]s only 
+ * see user provided metadata.
+ */
+internal fun Map<String, Any?>?.withoutExtensions(): Map<String, Any?>? {
+    return this?.filterKeys { it !in RESERVED_KEYS }
+}
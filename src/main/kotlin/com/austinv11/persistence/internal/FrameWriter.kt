@@ -0,0 +1,282 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.FrameStage
+import com.austinv11.persistence.Metrics
+import com.austinv11.persistence.impl.NoOpPreProcessor
+import com.austinv11.persistence.mask_int
+import com.austinv11.persistence.timed
+import net.jpountz.lz4.LZ4FrameOutputStream
+import org.msgpack.core.MessagePack
+import org.msgpack.core.buffer.MessageBuffer
+import java.io.ByteArrayOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * The length of the frame header, the pre-processor key followed by the (big endian) length of the frame.
+ */
+internal const val FRAME_HEADER_LENGTH = 5
+internal const val FRAME_RESERVED_LENGTH = FRAME_HEADER_LENGTH + LANE_PREFIX_LENGTH
+internal const val INITIAL_FRAME_BUFFER = 8192
+internal const val MAX_RETAINED_FRAME_BUFFER = 1024 * 1024
+
+/**
+ * This encodes and writes the frames of a single connection. Packers and frame buffers are pooled and reused between
+ * frames, so beyond what codecs and pre-processors allocate, sending a payload only allocates when the buffers need to 
+ * grow (or more payloads than ever before are encoded at once). Each frame (header included) is emitted with a single 
+ * write.
+ * 
+ * Frames are compressed by the connection's codec, then passed through the negotiated [FrameStage]s and finally the
+ * (legacy) [com.austinv11.persistence.PreProcessor].
+ * 
+ * Once lanes are active, frames are sent as chunks of at most [CHUNK_SIZE] bytes tagged with their lane. Frames are 
+ * written straight away when their lane (and the control lane) is idle and they fit in a chunk, otherwise they are 
+ * queued and every sender writes queued chunks (control lane first, then the data lanes in turn) until its own frame is
+ * done. So a large frame only delays other lanes by one chunk at a time.
+ *
+ * Payloads are encoded outside of any lock, so encoding a large frame doesn't hold up others. Only announcing schemas,
+ * queueing and writing are guarded by the connection's output stream lock.
+ */
+internal class FrameWriter(val connection: TwoWaySocket.CommunicationManager) {
+
+    private val encoders = ConcurrentLinkedQueue<Encoder>()
+    private val wire = FrameBuffer()
+    private val stages = StagePipeline(connection, true)
+    private val queues = Array(LANE_COUNT) { ArrayDeque<PendingFrame>() }
+    private var nextDataLane = CONTROL_LANE + 1
+    @Volatile private var lanes = false
+
+    /**
+     * Sends a payload, this returns once it was written.
+     */
+    fun send(payload: Payload, output: OutputStream) {
+        val manager = connection.manager
+        val schemas = connection.schemas
+        val encoder = encoders.poll() ?: Encoder()
+        var queued: PendingFrame? = null
+
+        try {
+            encoder.packer.clear()
+            manager.timed(Metrics.Timing.ENCODE) { manager.packInto(encoder.packer, payload, connection.extensions, schemas) }
+            val frame = encode(encoder.packer.toBufferList(), encoder.buffer)
+            manager.metrics.sent(connection.connection, ops[payload.op], frame.remaining())
+            
+            synchronized(output) {
+                //Schemas must be written before any frame using them, including frames encoded by other senders which 
+                //won the race to this lock. These are rare so they aren't pooled.
+                schemas?.unannounced()?.forEach {
+                    val announcement = FrameBuffer()
+                    val bytes = encode(listOf(MessageBuffer.wrap(manager.pack(Payload.Schema(it), connection.extensions))), announcement)
+                    if (lanes)
+                        queues[CONTROL_LANE].add(PendingFrame(CONTROL_LANE, bytes.remainingBytes()))
+                    else
+                        emit(bytes, CONTROL_LANE, true, output, announcement)
+                }
+                
+                val lane = if (lanes) manager.laneOf(payload) else CONTROL_LANE
+                if (!lanes) { //Frames are written whole and in order
+                    emit(frame, CONTROL_LANE, true, output, encoder.buffer)
+                } else if (queues[CONTROL_LANE].isEmpty() && queues[lane].isEmpty() && frame.remaining() <= CHUNK_SIZE) {
+                    emit(frame, lane, true, output, encoder.buffer)
+                } else {
+                    queued = PendingFrame(lane, frame.remainingBytes()).also { queues[lane].add(it) }
+                    manager.metrics.queued(connection.connection, queues.sumBy { it.size })
+                }
+            }
+        } finally {
+            encoder.buffer.release()
+            encoders.offer(encoder)
+        }
+        
+        queued?.let { await(it, output) }
+    }
+
+    /**
+     * Writes queued chunks until the provided frame was written.
+     */
+    private fun await(frame: PendingFrame, output: OutputStream) {
+        while (!frame.done && !connection.socket.isClosed) {
+            synchronized(output) {
+                if (!frame.done) writeChunk(output)
+            }
+        }
+    }
+
+    /**
+     * Switches on the provided stages (and lanes), this writes an empty frame which tells the peer that all following 
+     * frames use them.
+     */
+    fun activate(stages: List<FrameStage>, lanes: Boolean, output: OutputStream) {
+        if (stages.isEmpty() && !lanes) return
+        
+        synchronized(output) {
+            this.stages.stages = stages
+            this.lanes = lanes
+            val header = ByteArray(FRAME_HEADER_LENGTH)
+            writeHeader(header, 0, connection.manager.processor.key, 0)
+            output.write(header)
+        }
+    }
+    
+    private fun encode(segments: List<MessageBuffer>, buffer: FrameBuffer): ByteBuffer {
+        val manager = connection.manager
+        val codec = connection.codec
+        val size = segments.sumBy { it.size() }
+
+        buffer.begin()
+        if (codec == null) {
+            manager.timed(Metrics.Timing.COMPRESS) {
+                LZ4FrameOutputStream(buffer, LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB).use { lz4 -> segments.forEach { lz4.write(it) } }
+            }
+        } else if (size < manager.compressionThreshold || codec.key == RAW_FRAME) {
+            buffer.write(RAW_FRAME.toInt())
+            segments.forEach { buffer.write(it) }
+        } else {
+            buffer.write(codec.key.toInt())
+            buffer.write(manager.timed(Metrics.Timing.COMPRESS) { codec.compress(segments.toByteArray(size)) })
+        }
+        return buffer.frame()
+    }
+
+    /**
+     * Writes the next queued chunk, the control lane always goes first and the data lanes take turns.
+     */
+    private fun writeChunk(output: OutputStream) {
+        var lane = CONTROL_LANE
+        if (queues[CONTROL_LANE].isEmpty()) {
+            lane = -1
+            for (i in 0..(LANE_COUNT - 2)) {
+                val candidate = (nextDataLane - 1 + i) % (LANE_COUNT - 1) + 1
+                if (queues[candidate].isNotEmpty()) {
+                    lane = candidate
+                    break
+                }
+            }
+            if (lane < 0) return
+            nextDataLane = lane % (LANE_COUNT - 1) + 1
+        }
+
+        val frame = queues[lane].peek()
+        val length = Math.min(CHUNK_SIZE, frame.bytes.size - frame.offset)
+        val last = frame.offset + length == frame.bytes.size
+        wire.begin()
+        wire.write(frame.bytes, frame.offset, length)
+        frame.offset += length
+        if (last) {
+            queues[lane].poll()
+            frame.done = true
+            connection.manager.metrics.queued(connection.connection, queues.sumBy { it.size })
+        }
+        emit(wire.frame(), lane, last, output)
+    }
+
+    /**
+     * Writes a frame (or chunk). The frame must be in the provided [FrameBuffer] (or start with enough unused room in 
+     * front of it for the lane prefix and header), otherwise it is copied first.
+     */
+    private fun emit(body: ByteBuffer, lane: Int, last: Boolean, output: OutputStream, buffer: FrameBuffer? = null) {
+        val manager = connection.manager
+        var frame = body
+        if (lanes) {
+            val start = body.arrayOffset() + body.position()
+            if (start < FRAME_HEADER_LENGTH + LANE_PREFIX_LENGTH) { //No room for the prefix, this is a whole queued frame
+                wire.begin()
+                wire.write(body.remainingBytes())
+                frame = wire.frame()
+            }
+            frame = frame.withPrefix(lane, last)
+        }
+        
+        val processor = manager.processor
+        if (!stages.isEmpty || processor !is NoOpPreProcessor) {
+            frame = manager.timed(Metrics.Timing.ENCRYPT) {
+                val staged = stages.apply(frame)
+                if (processor !is NoOpPreProcessor) //The pre-processor api works on exact arrays so the frame must be copied out
+                    ByteBuffer.wrap(processor.pack(connection.host, connection.port, staged.remainingBytes()))
+                else
+                    staged
+            }
+        }
+        
+        val start = frame.arrayOffset() + frame.position()
+        if (frame.hasArray() && start >= FRAME_HEADER_LENGTH && (frame.array() === buffer?.array() || frame.array() === wire.array() || stages.owns(frame.array()))) {
+            writeHeader(frame.array(), start - FRAME_HEADER_LENGTH, processor.key, frame.remaining())
+            output.write(frame.array(), start - FRAME_HEADER_LENGTH, frame.remaining() + FRAME_HEADER_LENGTH)
+        } else { //The frame isn't in one of our buffers, so there isn't room for the header in front of it
+            wire.begin()
+            wire.write(frame.remainingBytes())
+            val copy = wire.frame()
+            writeHeader(wire.array(), copy.position() - FRAME_HEADER_LENGTH, processor.key, copy.remaining())
+            output.write(wire.array(), copy.position() - FRAME_HEADER_LENGTH, copy.remaining() + FRAME_HEADER_LENGTH)
+        }
+        wire.release()
+        stages.release()
+    }
+
+    /**
+     * The packer and frame buffer of a single send.
+     */
+    private class Encoder {
+        val packer = MessagePack.newDefaultBufferPacker()
+        val buffer = FrameBuffer()
+    }
+
+    private fun List<MessageBuffer>.toByteArray(size: Int): ByteArray {
+        if (this.size == 1) return this[0].toByteArray()
+
+        val bytes = ByteArray(size)
+        var offset = 0
+        forEach {
+            it.getBytes(0, bytes, offset, it.size())
+            offset += it.size()
+        }
+        return bytes
+    }
+
+    private fun OutputStream.write(segment: MessageBuffer) {
+        if (segment.hasArray())
+            write(segment.array(), segment.arrayOffset(), segment.size())
+        else
+            write(segment.toByteArray())
+    }
+}
+
+/**
+ * Writes a frame header (the pre-processor key followed by the big endian length) at the provided offset.
+ */
+internal fun writeHeader(array: ByteArray, offset: Int, key: Byte, length: Int) {
+    array[offset] = key
+    array[offset + 1] = ((length shr 24) and mask_int).toByte()
+    array[offset + 2] = ((length shr 16) and mask_int).toByte()
+    array[offset + 3] = ((length shr 8) and mask_int).toByte()
+    array[offset + 4] = (length and mask_int).toByte()
+}
+
+/**
+ * A reusable buffer which reserves space for the frame header (and lane prefix) in front of the frame.
+ */
+internal class FrameBuffer : ByteArrayOutputStream(INITIAL_FRAME_BUFFER) {
+
+    fun begin() {
+        reset()
+        count = FRAME_RESERVED_LENGTH
+    }
+
+    fun array(): ByteArray = buf
+
+    /**
+     * Wraps the frame written since [begin].
+     */
+    fun frame(): ByteBuffer = ByteBuffer.wrap(buf, FRAME_RESERVED_LENGTH, count - FRAME_RESERVED_LENGTH)
+
+    /**
+     * Drops the buffer if an unusually large frame (i.e. an INITIALIZE payload) grew it, so it isn't retained forever.
+     */
+    fun release() {
+        if (buf.size > MAX_RETAINED_FRAME_BUFFER)
+            buf = ByteArray(INITIAL_FRAME_BUFFER)
+        reset()
+    }
+}
@@ -0,0 +1,196 @@
+package com.austinv11.persistence.internal
+
+/**
+ * The number of key bits each level of a [HashTrie] branches on.
+ */
+private const val TRIE_BITS = 5
+private const val TRIE_MASK = (1 shl TRIE_BITS) - 1
+
+/**
+ * This is an immutable map from (object) hashes to values. It is a hash array mapped trie branching on the low bits of
+ * the keys first (the high bits of object hashes are shared by every object of a type), so changes copy a handful of
+ * small nodes rather than the whole map and any version can be held onto (i.e. iterated) for free.
+ */
+internal class HashTrie<V : Any> private constructor(private val root: Node?, val size: Int) : Iterable<V> {
+
+    companion object {
+        private val EMPTY = HashTrie<Any>(null, 0)
+
+        @Suppress("UNCHECKED_CAST")
+        fun <V : Any> empty(): HashTrie<V> = EMPTY as HashTrie<V>
+    }
+
+    operator fun get(key: Long): V? {
+        var node = root ?: return null
+        var shift = 0
+        while (true) {
+            val bit = bitFor(key, shift)
+            if (node.bitmap and bit == 0) return null
+            val child = node.array[node.index(bit)]
+            if (child is Leaf<*>) {
+                @Suppress("UNCHECKED_CAST")
+                return if (child.key == key) child.value as V else null
+            }
+            node = child as Node
+            shift += TRIE_BITS
+        }
+    }
+
+    fun containsKey(key: Long): Boolean = get(key) != null
+
+    /**
+     * Gets a version of this map which maps the key to the value (replacing whatever it was mapped to).
+     */
+    fun put(key: Long, value: V): HashTrie<V> {
+        val replaced = containsKey(key)
+        val leaf = Leaf(key, value)
+        return HashTrie(if (root == null) Node(bitFor(key, 0), arrayOf<Any?>(leaf)) else put(root, 0, leaf), if (replaced) size else size + 1)
+    }
+
+    /**
+     * Gets a version of this map without the key, or this map if it doesn't contain it.
+     */
+    fun remove(key: Long): HashTrie<V> {
+        if (root == null || !containsKey(key)) return this
+        return HashTrie(remove(root, 0, key), size - 1)
+    }
+
+    /**
+     * Iterates over the values, [TrieIterator.key] is the key of the value last returned.
+     */
+    override fun iterator(): TrieIterator<V> = TrieIterator(root)
+
+    private fun put(node: Node, shift: Int, leaf: Leaf<V>): Node {
+        val bit = bitFor(leaf.key, shift)
+        val index = node.index(bit)
+        if (node.bitmap and bit == 0) {
+            val array = arrayOfNulls<Any>(node.array.size + 1)
+            System.arraycopy(node.array, 0, array, 0, index)
+            array[index] = leaf
+            System.arraycopy(node.array, index, array, index + 1, node.array.size - index)
+            return Node(node.bitmap or bit, array)
+        }
+
+        val child = node.array[index]
+        val replacement: Any = when {
+            child is Node -> put(child, shift + TRIE_BITS, leaf)
+            (child as Leaf<*>).key == leaf.key -> leaf
+            else -> branch(child, leaf, shift + TRIE_BITS)
+        }
+        return Node(node.bitmap, node.array.copyOf().also { it[index] = replacement })
+    }
+
+    /**
+     * Creates the nodes which tell two leaves apart, starting at the provided shift.
+     */
+    private fun branch(first: Leaf<*>, second: Leaf<*>, shift: Int): Node {
+        val firstBit = bitFor(first.key, shift)
+        val secondBit = bitFor(second.key, shift)
+        if (firstBit == secondBit) return Node(firstBit, arrayOf<Any?>(branch(first, second, shift + TRIE_BITS)))
+        return Node(firstBit or secondBit, if (Integer.compareUnsigned(firstBit, secondBit) < 0) arrayOf<Any?>(first, second) else arrayOf<Any?>(second, first))
+    }
+
+    /**
+     * Removes a key which is known to be present, returns null if the node is left empty.
+     */
+    private fun remove(node: Node, shift: Int, key: Long): Node? {
+        val bit = bitFor(key, shift)
+        val index = node.index(bit)
+        val child = node.array[index]
+        val replacement = if (child is Node) remove(child, shift + TRIE_BITS, key) else null
+        if (replacement != null) {
+            val collapsed = if (replacement.array.size == 1 && replacement.array[0] is Leaf<*>) replacement.array[0] else replacement
+            return Node(node.bitmap, node.array.copyOf().also { it[index] = collapsed })
+        }
+
+        if (node.array.size == 1) return null
+        val array = arrayOfNulls<Any>(node.array.size - 1)
+        System.arraycopy(node.array, 0, array, 0, index)
+        System.arraycopy(node.array, index + 1, array, index, array.size - index)
+        return Node(node.bitmap xor bit, array)
+    }
+
+    private fun bitFor(key: Long, shift: Int): Int = 1 shl ((key ushr shift).toInt() and TRIE_MASK)
+
+    /**
+     * The entries of a node are either leaves or nodes, ordered by their bit in the bitmap.
+     */
+    private class Node(val bitmap: Int, val array: Array<Any?>) {
+
+        fun index(bit: Int): Int = Integer.bitCount(bitmap and (bit - 1))
+    }
+
+    private class Leaf<out V>(val key: Long, val value: V)
+
+    class TrieIterator<out V> internal constructor(root: Any?) : Iterator<V> {
+
+        private val nodes = arrayOfNulls<Array<Any?>>(64 / TRIE_BITS + 2)
+        private val indices = IntArray(nodes.size)
+        private var depth = -1
+        private var next: Leaf<V>? = null
+
+        /**
+         * The key of the value last returned by [next].
+         */
+        var key = 0L
+            private set
+
+        init {
+            if (root is Node) {
+                nodes[0] = root.array
+                depth = 0
+                advance()
+            }
+        }
+
+        private fun advance() {
+            next = null
+            while (depth >= 0) {
+                val array = nodes[depth]!!
+                if (indices[depth] == array.size) {
+                    depth--
+                    continue
+                }
+                val entry = array[indices[depth]++]
+                if (entry is Node) {
+                    depth++
+                    nodes[depth] = entry.array
+                    indices[depth] = 0
+                } else {
+                    @Suppress("UNCHECKED_CAST")
+                    next = entry as Leaf<V>
+                    return
+                }
+            }
+        }
+
+        override fun hasNext(): Boolean = next != null
+
+        override fun next(): V {
+            val leaf = next ?: throw NoSuchElementException()
+            key = leaf.key
+            advance()
+            return leaf.value
+        }
+    }
+}
+
+/**
+ * This is an immutable view of the values of a single version of a [HashTrie].
+ */
+internal class TrieValues<V : Any>(private val trie: HashTrie<V>) : java.util.AbstractCollection<V>() {
+
+    override val size: Int
+        get() = trie.size
+
+    override fun iterator(): MutableIterator<V> {
+        val iterator = trie.iterator()
+        return object : MutableIterator<V> {
+            override fun hasNext() = iterator.hasNext()
+
+            override fun next() = iterator.next()
+
+            override fun remove() = throw UnsupportedOperationException("Snapshots are immutable!")
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.logger
+import kotlinx.coroutines.experimental.delay
+import kotlinx.coroutines.experimental.launch
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+internal const val FAILURE_DETECTOR_WINDOW = 100
+internal const val ACCEPTABLE_HEARTBEAT_PAUSES = 3
+internal const val LATENCY_WINDOW = 256
+
+/**
+ * This periodically pings every established connection and closes connections whose failure detector suspects that
+ * the peer is dead, until the transport is closed.
+ */
+internal class Heartbeat(val transport: Transport) {
+
+    init {
+        launch(transport.context.encode) {
+            while (!transport.closed) {
+                val interval = transport.context.heartbeatInterval
+                if (interval <= 0) {
+                    delay(1000)
+                    continue
+                }
+
+                delay(interval)
+                beat()
+            }
+        }
+    }
+
+    private suspend fun beat() {
+        val now = System.nanoTime()
+        for (connection in transport.connections) {
+            if (!connection.established) continue
+
+            val phi = connection.detector.phi(now)
+            if (phi > transport.context.failureThreshold) {
+                logger.warn("Connection to {}:{} is suspected to be dead (phi = {}), closing it...", connection.host, connection.port, phi)
+                transport.spy.disconnected()
+                connection.close()
+                continue
+            }
+
+            connection.heartbeats.ping()
+        }
+    }
+}
+
+/**
+ * This tracks the pings sent on a connection and the round trip times measured from their (echoed) monotonic
+ * timestamps.
+ */
+internal class Heartbeats(val connection: Transport.Link) {
+
+    private val pending = ConcurrentHashMap<Long, CompletableFuture<Long>>()
+    private val latencies = LongArray(LATENCY_WINDOW)
+    private var count = 0
+    @Volatile var lastRoundTrip = -1L
+
+    /**
+     * Sends a ping, the returned future is completed with the round trip time (in ns) once the PONG arrives.
+     */
+    fun ping(): CompletableFuture<Long> {
+        val future = CompletableFuture<Long>()
+        var echo = System.nanoTime()
+        while (pending.putIfAbsent(echo, future) != null) echo++ //Unlikely, but the echo must be unique
+
+        launch(connection.manager.encode) {
+            connection.send(Payload.Ping(echo))
+        }
+        return future
+    }
+
+    /**
+     * Called when a PONG is received, legacy nodes don't echo timestamps so their round trip is estimated from the
+     * sender's wall clock (and every pending ping is completed with it).
+     */
+    fun ponged(payload: Payload.Pong): Long {
+        val now = System.nanoTime()
+        connection.detector.heartbeat(now)
+
+        val echo = payload.echo
+        val roundTrip: Long
+        if (echo != null) {
+            roundTrip = now - echo
+            pending.remove(echo)?.complete(roundTrip)
+        } else {
+            roundTrip = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - payload.t) * 2)
+            pending.keys.forEach { pending.remove(it)?.complete(roundTrip) }
+        }
+
+        synchronized(latencies) {
+            latencies[count++ % LATENCY_WINDOW] = roundTrip
+        }
+        lastRoundTrip = roundTrip
+        return roundTrip
+    }
+
+    /**
+     * Gets a percentile (0-100) of the recent round trip times in ns, or -1 if there are none.
+     */
+    fun percentile(percentile: Double): Long {
+        val samples = synchronized(latencies) { latencies.copyOf(Math.min(count, LATENCY_WINDOW)) }
+        if (samples.isEmpty()) return -1
+
+        samples.sort()
+        val index = Math.ceil(percentile / 100.0 * samples.size).toInt() - 1
+        return samples[Math.min(samples.size - 1, Math.max(0, index))]
+    }
+
+    fun closed() {
+        pending.keys.forEach { pending.remove(it)?.completeExceptionally(IllegalStateException("Connection closed!")) }
+    }
+}
+
+/**
+ * This is a phi-accrual failure detector (Hayashibara et al). It models the intervals between heartbeats as a normal
+ * distribution and reports how unlikely it is that the peer is still alive given the time since it was last heard from,
+ * on a logarithmic scale (phi = 1 is a 10% chance of a false positive, phi = 2 a 1% chance, etc).
+ */
+internal class FailureDetector(val interval: () -> Long) {
+
+    private val intervals = LongArray(FAILURE_DETECTOR_WINDOW)
+    private var count = 0
+    private var lastHeartbeat = 0L
+    @Volatile private var lastHeard = System.nanoTime()
+    @Volatile private var applying = false
+
+    /**
+     * Records a heartbeat (PONG) arrival.
+     */
+    @Synchronized fun heartbeat(now: Long) {
+        if (lastHeartbeat != 0L)
+            intervals[count++ % FAILURE_DETECTOR_WINDOW] = now - lastHeartbeat
+        lastHeartbeat = now
+        heard(now)
+    }
+
+    /**
+     * Records any other sign of life.
+     */
+    fun heard(now: Long) {
+        lastHeard = now
+    }
+
+    /**
+     * Suspends suspicion while a received payload is applied on the connection's read loop, nothing can be heard from 
+     * the peer until it is done (and applying large payloads can take longer than the tolerated pauses).
+     */
+    fun applying() {
+        applying = true
+    }
+
+    fun applied(now: Long) {
+        heard(now)
+        applying = false
+    }
+
+    @Synchronized fun phi(now: Long): Double {
+        if (applying) return 0.0
+        
+        val expected = TimeUnit.MILLISECONDS.toNanos(interval()).toDouble()
+        val samples = Math.min(count, FAILURE_DETECTOR_WINDOW)
+        val mean: Double
+        val deviation: Double
+        if (samples == 0) { //No history yet, assume heartbeats arrive on schedule
+            mean = expected
+            deviation = expected / 4
+        } else {
+            mean = (0..(samples - 1)).sumByDouble { intervals[it].toDouble() } / samples
+            val variance = (0..(samples - 1)).sumByDouble { Math.pow(intervals[it] - mean, 2.0) } / samples
+            deviation = Math.max(Math.sqrt(variance), expected / 10)
+        }
+
+        val elapsed = (now - lastHeard).toDouble()
+        val tolerated = mean + ACCEPTABLE_HEARTBEAT_PAUSES * expected //Don't suspect nodes for short hiccups (i.e. GC pauses)
+        val y = (elapsed - tolerated) / deviation
+        val e = Math.exp(-y * (1.5976 + 0.070566 * y * y)) //Logistic approximation of the normal cdf
+        val phi = if (elapsed > tolerated) -Math.log10(e / (1.0 + e)) else -Math.log10(1.0 - 1.0 / (1.0 + e))
+        return Math.max(0.0, phi)
+    }
+}
@@ -0,0 +1,173 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.ConnectionSpy
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.impl.NoOpConnectionSpy
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.map
+import kotlinx.coroutines.experimental.launch
+import java.net.BindException
+import java.net.ConnectException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+import java.lang.reflect.Array as RefArray
+
+/**
+ * This connects nodes within the same JVM, payloads are handed to the peer directly rather than being encoded, so
+ * codecs, stages and the [com.austinv11.persistence.PreProcessor] are never used. Nodes are registered by their port.
+ *
+ * Object data is copied when it is sent so peers never share mutable state: collections, maps and arrays are copied
+ * (recursively), values with an [com.austinv11.persistence.ExternalData] transformer are copied through it and any
+ * other values (strings, boxed primitives, enums, etc) are assumed to be immutable and shared.
+ */
+class InProcessTransport(context: PersistenceManager,
+                         val port: Int,
+                         allowedConnections: Int,
+                         spy: ConnectionSpy = NoOpConnectionSpy()) : Transport(context, allowedConnections, spy) {
+
+    companion object {
+        private val nodes = ConcurrentHashMap<Int, InProcessTransport>()
+    }
+
+    init {
+        if (nodes.putIfAbsent(port, this) != null) throw BindException("In-process port $port is already in use!")
+    }
+
+    override suspend fun connectTo(host: String, port: Int, metadata: Map<String, Any?>?) {
+        val node = nodes[port] ?: throw ConnectException("No in-process node is listening on port $port!")
+        val link = InProcessLink(SocketHook(this, spy), host, port)
+        link.peer = node.accept(link, this.port) ?: throw ConnectException("In-process node on port $port refused the connection!")
+        link.send(Payload.Identify(context.version, d = metadata.advertise(SUPPORTED_EXTENSIONS)))
+        connections += link
+    }
+
+    @Synchronized private fun accept(link: InProcessLink, port: Int): InProcessLink? {
+        if (closed || connections.size >= allowedConnections) return null
+
+        val peer = InProcessLink(SocketHook(this, spy), "localhost", port)
+        peer.peer = link
+        connections += peer
+        return peer
+    }
+
+    override fun close() {
+        nodes.remove(port, this)
+        super.close()
+    }
+
+    inner class InProcessLink(hook: Hook,
+                              host: String,
+                              port: Int) : Link(this@InProcessTransport, hook, host, port) {
+
+        @Volatile internal var peer: InProcessLink? = null
+        private val inbox = ConcurrentLinkedQueue<Any>()
+        private val draining = AtomicBoolean()
+        private val closed = AtomicBoolean()
+
+        override suspend fun send(payload: Payload) {
+            val peer = peer ?: return
+            if (closed.get()) return
+
+            manager.metrics.sent(connection, ops[payload.op], 0)
+            peer.deliver(payload.snapshot(manager))
+        }
+
+        override fun activateNegotiated() {} //Nothing is encoded
+
+        /**
+         * Queues a payload sent by the peer (or [Closed]), these are received in order by at most one coroutine at a
+         * time.
+         */
+        private fun deliver(payload: Any) {
+            detector.heard(System.nanoTime()) //On arrival, applying earlier payloads may take a while
+            inbox += payload
+            if (draining.compareAndSet(false, true))
+                launch(manager.apply ?: manager.encode) { drain() }
+        }
+
+        private suspend fun drain() {
+            while (true) {
+                while (true) {
+                    val payload = inbox.poll() ?: break
+                    if (closed.get()) continue
+                    if (payload === Closed) { //The peer hung up after everything it sent was received
+                        close()
+                        continue
+                    }
+                    payload as Payload
+
+                    try {
+                        val id = payload.id
+                        if (id != null && !firstSighting(id)) {
+                            manager.metrics.received(connection, null, 0)
+                            continue
+                        }
+                        manager.metrics.received(connection, ops[payload.op], 0)
+                        receive(payload)
+                    } catch (e: Exception) {
+                        logger.error("Exception caught processing data, cleanly closing connection to $host:$port...", e)
+                        use {
+                            send(Payload.Kick())
+                        }
+                    }
+                }
+                draining.set(false)
+                if (inbox.isEmpty() || !draining.compareAndSet(false, true)) return //Another drain picked it up
+            }
+        }
+
+        override fun close() {
+            if (!closed.compareAndSet(false, true)) return
+
+            super.close()
+            peer?.deliver(Closed)
+        }
+    }
+
+    private object Closed
+}
+
+/**
+ * Copies the object data of a payload, see [InProcessTransport].
+ */
+internal fun Payload.snapshot(context: PersistenceManager): Payload {
+    return when (this) {
+        is Payload.Initialize -> {
+            val data = d as InitializeValueWrapper
+            Payload.Initialize(t, InitializeValueWrapper(Array(data.p.size) { (data.p[it] as? Map<String, Any?> ?: data.p[it]?.map(context))?.snapshot(context) }, data.r, data.k, data.s, data.hashes(context)), id)
+        }
+        is Payload.Creation -> Payload.Creation(t, d!!.snapshot(context), h!!, id, c)
+        is Payload.Change -> Payload.Change(t, d!!.snapshot(context), h!!, oh!!, id, k, c)
+        is Payload.BulkRemoval -> Payload.BulkRemoval(t, d!!, h, id).also { it.removed = removed } //The receiver sets removed
+        else -> this //Nothing else carries object data
+    }
+}
+
+private fun Map<String, Any?>.snapshot(context: PersistenceManager): Map<String, Any?> {
+    if (this is ObjectData)
+        return ObjectData(type, names, Array(size) { propertyValues[it].snapshot(context) }, indices?.clone())
+    return entries.associateTo(LinkedHashMap()) { it.key to it.value.snapshot(context) }
+}
+
+private fun Any?.snapshot(context: PersistenceManager): Any? {
+    val value = this ?: return null
+    return when (value) {
+        is String, is Number, is Boolean, is Char, is Enum<*> -> value
+        is Map<*, *> -> value.entries.associateTo(LinkedHashMap()) { it.key.snapshot(context) to it.value.snapshot(context) }
+        is Set<*> -> value.mapTo(LinkedHashSet()) { it.snapshot(context) }
+        is Collection<*> -> value.mapTo(ArrayList(value.size)) { it.snapshot(context) }
+        else -> {
+            if (value.javaClass.isArray) {
+                val length = RefArray.getLength(value)
+                val copy = RefArray.newInstance(value.javaClass.componentType, length)
+                for (i in 0..(length - 1)) RefArray.set(copy, i, RefArray.get(value, i).snapshot(context))
+                return copy
+            }
+
+            if (context.isNested(value)) return context.mapNested(value).snapshot(context)
+            val transformer = context.customDataTransformers.firstOrNull { it.canAccept(value.javaClass) } ?: return value
+            transformer.readFromBytes(transformer.writeToBytes(value))
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import org.msgpack.core.MessageUnpacker
+import org.msgpack.value.ValueType
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Longer strings are never interned, they are unlikely to repeat.
+ */
+internal const val MAX_INTERNED_LENGTH = 64
+
+private val scratch = ThreadLocal.withInitial { ByteArray(MAX_INTERNED_LENGTH) }
+
+/**
+ * This is a bounded cache of decoded strings which is looked up by their raw UTF-8 bytes, so repeated strings are
+ * neither allocated again nor kept around as duplicates. It is direct mapped: each string has a single slot (picked by
+ * the hash of its bytes) and replaces whatever was cached in it.
+ */
+internal class StringInterner(capacity: Int) {
+
+    private val slots: Array<Entry?>
+    private val mask: Int
+    val hits = LongAdder()
+    val misses = LongAdder()
+
+    init {
+        if (capacity < 1) throw IllegalArgumentException("Capacity must be positive!")
+
+        val size = Integer.highestOneBit(Math.min(capacity, 1 shl 29) * 2 - 1) //Round up to a power of two
+        slots = arrayOfNulls(size)
+        mask = size - 1
+    }
+
+    /**
+     * The number of cached strings.
+     */
+    val size: Int
+        get() = slots.count { it != null }
+
+    /**
+     * Gets the (cached) string for the first `length` UTF-8 bytes of the array.
+     */
+    fun intern(bytes: ByteArray, length: Int): String {
+        var hash = 1
+        for (i in 0..(length - 1)) hash = 31 * hash + bytes[i]
+
+        val index = (hash xor (hash ushr 16)) and mask
+        val entry = slots[index]
+        if (entry != null && entry.hash == hash && entry.matches(bytes, length)) {
+            hits.increment()
+            return entry.string
+        }
+
+        misses.increment()
+        val copy = bytes.copyOf(length)
+        val string = String(copy, Charsets.UTF_8)
+        slots[index] = Entry(copy, hash, string) //Entries are immutable, so racing writers are harmless
+        return string
+    }
+
+    fun reset() {
+        hits.reset()
+        misses.reset()
+    }
+
+    private class Entry(val bytes: ByteArray, val hash: Int, val string: String) {
+
+        fun matches(other: ByteArray, length: Int): Boolean {
+            if (bytes.size != length) return false
+            for (i in 0..(length - 1)) if (bytes[i] != other[i]) return false
+            return true
+        }
+    }
+}
+
+/**
+ * Unpacks a string, interning it if interning is enabled (and it is short enough).
+ */
+internal fun MessageUnpacker.unpackInterned(interner: StringInterner?): String {
+    if (interner == null) return unpackString()
+
+    val length = unpackRawStringHeader()
+    if (length > MAX_INTERNED_LENGTH) return String(readPayload(length), Charsets.UTF_8)
+
+    val bytes = scratch.get()
+    readPayload(bytes, 0, length)
+    return interner.intern(bytes, length)
+}
+
+/**
+ * Unpacks a property name (or other map key).
+ */
+internal fun MessageUnpacker.unpackKey(context: PersistenceManager): String = unpackInterned(context.interner)
+
+/**
+ * Unpacks the value of a property, strings are interned if the property is one of
+ * [PersistenceManager.internedProperties].
+ */
+internal fun MessageUnpacker.unpackProperty(name: String?, context: PersistenceManager): Any? {
+    val interner = context.interner
+    if (interner != null && name != null && name in context.internedProperties && nextFormat.valueType == ValueType.STRING)
+        return unpackInterned(interner)
+    return unpackAny(context)
+}
@@ -0,0 +1,90 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.InputMismatchException
+
+/**
+ * The number of lanes, lane 0 is the control lane and the others carry replicated data.
+ */
+internal const val LANE_COUNT = 5
+internal const val CONTROL_LANE = 0
+internal const val CHUNK_SIZE = 16 * 1024
+internal const val LANE_PREFIX_LENGTH = 2
+internal const val LAST_CHUNK: Byte = 1
+
+/**
+ * Gets the lane a payload is sent on. Handshake, ping, schema and tree maintenance payloads use the control lane while 
+ * replicated payloads use a data lane picked from the type part of their object hash, so all payloads for a type stay 
+ * in order.
+ */
+internal fun PersistenceManager.laneOf(payload: Payload): Int {
+    return when (payload) {
+        is Payload.Creation, is Payload.Change, is Payload.Removal -> laneOf(payload.h!!)
+        is Payload.BulkRemoval, is Payload.Seed -> payload.h?.let { laneOf(it) } ?: CONTROL_LANE
+        is Payload.Initialize -> (payload.d as InitializeValueWrapper).p.firstOrNull()?.let { laneOf(generateHash(it)) } ?: CONTROL_LANE
+        else -> CONTROL_LANE
+    }
+}
+
+/**
+ * Picks the data lane of a hash from its type part (the name and field count bytes) alone. Hashes are built by adding
+ * signed bytes (see [PersistenceManager.generateHash]), so a negative hashCode byte borrows from the bytes above it; the 
+ * four hashCode bytes are peeled off one at a time (exactly undoing the additions) so the hashCode never picks the lane.
+ */
+private fun laneOf(hash: Long): Int {
+    var type = hash
+    for (i in 1..4) type = (type - type.toByte()) shr 8
+    return Math.floorMod(type, (LANE_COUNT - 1).toLong()).toInt() + 1
+}
+
+/**
+ * Prepends the lane prefix in the unused room in front of the buffer's data.
+ */
+internal fun ByteBuffer.withPrefix(lane: Int, last: Boolean): ByteBuffer {
+    val start = arrayOffset() + position() - LANE_PREFIX_LENGTH
+    array()[start] = lane.toByte()
+    array()[start + 1] = if (last) LAST_CHUNK else 0
+    return ByteBuffer.wrap(array(), start, remaining() + LANE_PREFIX_LENGTH)
+}
+
+/**
+ * A frame queued for a lane.
+ */
+internal class PendingFrame(val lane: Int, 
+                            val bytes: ByteArray) {
+    
+    var offset = 0
+    @Volatile var done = false
+}
+
+/**
+ * This reassembles the frames of each lane from their chunks.
+ */
+internal class LaneReassembler {
+
+    private val partial = arrayOfNulls<ByteArrayOutputStream>(LANE_COUNT)
+
+    /**
+     * Accepts a chunk, returning the frame if it was the last chunk of it.
+     */
+    fun accept(chunk: ByteBuffer): ByteBuffer? {
+        val lane = chunk.get().toInt()
+        val last = chunk.get() == LAST_CHUNK
+        if (lane < 0 || lane >= LANE_COUNT) throw InputMismatchException("Unknown lane $lane!")
+
+        val buffered = partial[lane]
+        if (buffered == null && last) return chunk //Unchunked frame
+
+        val frame = buffered ?: ByteArrayOutputStream().also { partial[lane] = it }
+        if (chunk.hasArray())
+            frame.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining())
+        else
+            frame.write(chunk.remainingBytes())
+        if (!last) return null
+
+        partial[lane] = null
+        return ByteBuffer.wrap(frame.toByteArray())
+    }
+}
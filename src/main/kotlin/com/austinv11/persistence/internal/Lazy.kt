@@ -0,0 +1,52 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import org.msgpack.core.MessagePack
+import java.nio.ByteBuffer
+
+/**
+ * These are the positionally packed values of a received object which weren't decoded yet, see
+ * [PersistenceManager.lazyMaterialization].
+ *
+ * @param bytes The packed values (without the array header and schema id).
+ * @param count The number of values.
+ */
+internal class EncodedValues(val bytes: ByteArray,
+                             val count: Int,
+                             val schema: InboundSchema,
+                             val context: PersistenceManager) {
+
+    /**
+     * Unpacks the values, i.e. to forward them.
+     */
+    fun values(): Array<Any?> {
+        val unpacker = MessagePack.newDefaultUnpacker(bytes)
+        return Array(count) { unpacker.unpackProperty(schema.names.getOrNull(it), context) }
+    }
+
+    /**
+     * Decodes the values into a new instance of the schema's type.
+     */
+    fun decode(): Any = schema.decoder!!.decode(MessagePack.newDefaultUnpacker(bytes), context, schema.positional!!, count)
+}
+
+/**
+ * This is a received object which is kept in its encoded form until it is first accessed.
+ *
+ * @param key The object's key, if it was sent (see [Replica]).
+ * @param stamps The object's flattened stamps, if they were sent (see [Replica.flatten]).
+ */
+internal class Deferred(val encoded: EncodedValues,
+                        val key: Long?,
+                        val stamps: List<*>?) {
+
+    val value: Any by lazy { encoded.decode() }
+}
+
+/**
+ * Copies the bytes an unpacker (reading from the provided frame) consumed between two of its positions.
+ */
+internal fun ByteBuffer.bytesBetween(from: Long, to: Long): ByteArray {
+    val start = arrayOffset() + position() + from.toInt()
+    return array().copyOfRange(start, start + (to - from).toInt())
+}
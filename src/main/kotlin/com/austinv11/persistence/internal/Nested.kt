@@ -0,0 +1,94 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.map
+import com.austinv11.persistence.matchProperties
+
+/**
+ * The key which the type of a nested object is sent under (when deep persistence is enabled), so the receiver can
+ * instantiate the right implementation of an interface typed property.
+ */
+internal const val NESTED_TYPE_KEY = "@type"
+
+/**
+ * Property paths of nested objects are joined with this, i.e. `address.street`.
+ */
+internal const val PATH_SEPARATOR = '.'
+
+internal const val MAX_NESTING_DEPTH = 32
+
+/**
+ * Checks whether a property value is a nested object which is persisted along with its parent, rather than a value
+ * which is packed as is (or by an [com.austinv11.persistence.ExternalData] transformer).
+ */
+internal fun PersistenceManager.isNested(value: Any?): Boolean {
+    if (!deepPersistence || value == null) return false
+    if (value is String || value is Number || value is Boolean || value is Char || value is Enum<*>
+            || value is Collection<*> || value is Map<*, *> || value.javaClass.isArray) return false
+    if (customDataTransformers.any { it.canAccept(value.javaClass) }) return false
+
+    return matchProperties(value).isNotEmpty()
+}
+
+/**
+ * Maps a property value for sending, nested objects are mapped (recursively) to their properties and [NESTED_TYPE_KEY].
+ */
+internal fun PersistenceManager.mapNested(value: Any?, depth: Int = 0): Any? {
+    if (!isNested(value)) return value
+    if (depth >= MAX_NESTING_DEPTH) throw IllegalStateException("Nested objects are more than $MAX_NESTING_DEPTH levels deep, is the object graph cyclic?")
+
+    val data = value!!.map(this, depth + 1)
+    val map = LinkedHashMap<String, Any?>(data.size + 1)
+    map[NESTED_TYPE_KEY] = value.javaClass.name
+    data.forEach { k, v -> map[k] = v }
+    return map
+}
+
+/**
+ * Converts a received value for a property of the provided type, this materializes nested objects from their maps and
+ * sets from the arrays they are sent as.
+ */
+internal fun PersistenceManager.nested(value: Any?, type: Class<*>): Any? {
+    if (value is List<*> && !type.isInstance(value) && type.isAssignableFrom(LinkedHashSet::class.java)) return LinkedHashSet(value)
+    if (!deepPersistence || value !is Map<*, *> || type.isInstance(value)) return value
+
+    val name = value[NESTED_TYPE_KEY] as? String
+    val clazz = try {
+        if (name != null) Class.forName(name, false, type.classLoader ?: javaClass.classLoader) else type
+    } catch (e: ClassNotFoundException) {
+        logger.debug("Unable to find nested type {}", name)
+        return value
+    }
+    if (!type.isAssignableFrom(clazz) || clazz.isInterface) return value //Not something we can (or should) instantiate
+
+    return decoderFor(clazz).decode(value as Map<String, Any?>, this)
+}
+
+/**
+ * Gets the value at a property path, see [PATH_SEPARATOR].
+ */
+internal fun PersistenceManager.valueAt(obj: Any, path: String): Any? {
+    var current: Any? = obj
+    for (segment in path.split(PATH_SEPARATOR)) {
+        current = matchProperties(current ?: return null).firstOrNull { it.name == segment }?.getter?.invokeWithArguments() ?: return null
+    }
+    return current
+}
+
+/**
+ * Sets the value at a property path, see [PATH_SEPARATOR].
+ *
+ * @return False if the path doesn't exist (i.e. a parent object is null).
+ */
+internal fun PersistenceManager.setPath(obj: Any, path: String, value: Any?): Boolean {
+    val segments = path.split(PATH_SEPARATOR)
+    var target: Any = obj
+    for (i in 0..(segments.size - 2)) {
+        target = matchProperties(target).firstOrNull { it.name == segments[i] }?.getter?.invokeWithArguments() ?: return false
+    }
+
+    val property = matchProperties(target).firstOrNull { it.name == segments.last() } ?: return false
+    property.setter.invokeWithArguments(nested(value, property.type))
+    return true
+}
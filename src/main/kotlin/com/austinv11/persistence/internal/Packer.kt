@@ -4,69 +4,174 @@ import com.austinv11.persistence.OpCode
 import com.austinv11.persistence.PersistenceManager
 import com.austinv11.persistence.logger
 import com.austinv11.persistence.map
-import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream
-import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream
+import net.jpountz.lz4.LZ4FrameInputStream
 import org.msgpack.core.MessageBufferPacker
 import org.msgpack.core.MessagePack
 import org.msgpack.core.MessageUnpacker
 import org.msgpack.value.ValueType
-import java.io.ByteArrayOutputStream
+import java.io.ByteArrayInputStream
+import java.nio.ByteBuffer
 import java.util.*
 
 private typealias RefArray = java.lang.reflect.Array
 internal val ops = OpCode.values()
 internal const val WRAPPER_KEY = "p"
 internal const val RESPOND_KEY = "r"
+internal const val KEYS_KEY = "k"
+internal const val STAMPS_KEY = "s"
+internal const val HASHES_KEY = "h"
+internal const val NAMES_KEY = "n"
+internal const val CLEAR_KEY = "x"
+internal const val TYPE_KEY = "y"
+internal const val BLOCK_KEY = "b"
 
-internal fun compress(bytes: ByteArray): ByteArray {
-    val byteStream = ByteArrayOutputStream()
-    val outStream = FramedLZ4CompressorOutputStream(byteStream)
-    outStream.write(bytes)
-    outStream.close()
-    return byteStream.toByteArray()
-}
+/**
+ * The most hashes sent in a single BULK_REMOVAL payload, larger removals are split.
+ */
+internal const val MAX_BULK_HASHES = 1 shl 16
+internal const val RAW_FRAME: Byte = 0
+private val LZ4_FRAME_MAGIC = byteArrayOf(0x04, 0x22, 0x4D, 0x18)
 
-internal fun decompress(bytes: ByteArray): ByteArray {
-    val inStream = FramedLZ4CompressorInputStream(bytes.inputStream())
+internal fun decompress(frame: ByteBuffer): ByteArray {
+    val bytes = if (frame.hasArray()) frame.array() else frame.remainingBytes()
+    val offset = if (frame.hasArray()) frame.arrayOffset() + frame.position() else 0
+    val inStream = LZ4FrameInputStream(ByteArrayInputStream(bytes, offset, frame.remaining()))
     val readBytes = inStream.readBytes()
     inStream.close()
     return readBytes
 }
 
-internal fun PersistenceManager.pack(payload: Payload): ByteArray {
+/**
+ * Decodes a frame written by [FrameWriter]. When a codec was negotiated, frames are prefixed by a flag byte which is 
+ * either [RAW_FRAME] (when the data is smaller than the threshold) or the key of the codec which compressed it. 
+ * Otherwise frames use the LZ4 frame format, these are detected by their magic number so frames sent before the sender 
+ * switched codecs are still understood.
+ */
+internal fun PersistenceManager.decodeFrame(frame: ByteBuffer): ByteBuffer {
+    val start = frame.position()
+    if (frame.remaining() >= LZ4_FRAME_MAGIC.size && (0..(LZ4_FRAME_MAGIC.size - 1)).all { frame.get(start + it) == LZ4_FRAME_MAGIC[it] }) 
+        return ByteBuffer.wrap(decompress(frame))
+    
+    val flag = frame.get()
+    if (flag == RAW_FRAME) return frame
+    
+    val codec = codecs.firstOrNull { it.key == flag } ?: throw InputMismatchException("Unknown codec $flag!")
+    return ByteBuffer.wrap(codec.decompress(frame.remainingBytes()))
+}
+
+/**
+ * Packs a payload. When a schema table is provided (the peer negotiated [EXT_SCHEMAS]), object data of known types is 
+ * packed positionally.
+ */
+internal fun PersistenceManager.pack(payload: Payload, extensions: Set<String> = emptySet(), schemas: SchemaTable? = null): ByteArray {
     val packer = MessagePack.newDefaultBufferPacker()
+    packInto(packer, payload, extensions, schemas)
+    return packer.toByteArray().also { packer.close() }
+}
+
+/**
+ * Packs a payload into the provided (possibly reused) packer. Header fields are written directly rather than being 
+ * collected into a map first.
+ */
+internal fun PersistenceManager.packInto(packer: MessageBufferPacker, payload: Payload, extensions: Set<String> = emptySet(), schemas: SchemaTable? = null) {
+    val ids = payload.id != null && EXT_MESSAGE_IDS in extensions //Only peers which negotiated it understand these keys
+    val lww = EXT_LWW in extensions
     
-    val payloadMap = payload.toMap()
+    var fields = 2
+    if (payload.v != null) fields++
+    if (payload.h != null) fields++
+    if (payload.oh != null) fields++
+    if (ids) fields += 2
+    if (lww && payload.k != null) fields++
+    if (lww && payload.c != null) fields++
+    if (payload.d != null) fields++
+    packer.packMapHeader(fields)
     
-    packer.packMapHeader(payloadMap.size + (if (payload.d == null) 0 else 1))
-    payloadMap.forEach { k, v -> 
-        packer.insert(k, this)
-        packer.insert(v, this)
+    if (payload.v != null) {
+        packer.packString("v")
+        packer.packInt(payload.v)
+    }
+    packer.packString("t")
+    packer.packLong(payload.t)
+    packer.packString("op")
+    packer.packInt(payload.op)
+    if (payload.h != null) {
+        packer.packString("h")
+        packer.packLong(payload.h)
+    }
+    if (payload.oh != null) {
+        packer.packString("oh")
+        packer.packLong(payload.oh)
+    }
+    if (ids) { //Always packed before d so unpack() can filter duplicates without decoding it
+        packer.packString("o")
+        packer.packLong(payload.id!!.origin)
+        packer.packString("s")
+        packer.packLong(payload.id.sequence)
+    }
+    if (lww && payload.k != null) {
+        packer.packString("k")
+        packer.packLong(payload.k)
+    }
+    if (lww && payload.c != null) {
+        packer.packString("c")
+        packer.packLong(payload.c)
     }
     
     if (payload.d != null) {
-        packer.insert("d", this)
+        packer.packString("d")
         
-        if (payload.d !is InitializeValueWrapper) {
-            packer.insert(payload.d, this)
-        } else {
-            packer.packMapHeader(2)
-            packer.insert(RESPOND_KEY, this)
-            packer.insert(payload.d.r, this)
-            packer.insert(WRAPPER_KEY, this)
+        if (payload.d is InitializeValueWrapper) {
+            val versions = lww && payload.d.k != null
+            val hashes = if (EXT_HASHES in extensions) payload.d.hashes(this) else null
+            packer.packMapHeader(2 + (if (versions) 2 else 0) + (if (hashes != null) 1 else 0))
+            if (hashes != null) {
+                packer.packString(HASHES_KEY)
+                packer.insert(hashes, this)
+            }
+            if (versions) {
+                packer.packString(KEYS_KEY)
+                packer.insert(payload.d.k, this)
+                packer.packString(STAMPS_KEY)
+                packer.insert(payload.d.s, this)
+            }
+            packer.packString(RESPOND_KEY)
+            packer.packBoolean(payload.d.r)
+            packer.packString(WRAPPER_KEY)
             packer.packArrayHeader(payload.d.p.size)
             payload.d.p.forEach { 
-                packer.insert(it!!.map(this), this)
+                packer.insertObject(it as? Map<String, Any?> ?: it!!.map(this), this, schemas) //Forwarded entries are already mapped
             }
+        } else if (payload is Payload.Seed) { //The block is packed as binary
+            val block = payload.block
+            packer.packMapHeader(2)
+            packer.packString(BLOCK_KEY)
+            if (block == null) {
+                packer.packNil()
+            } else {
+                packer.packBinaryHeader(block.size)
+                packer.writePayload(block)
+            }
+            packer.packString(HASHES_KEY)
+            packer.insert(payload.removed, this)
+        } else if (payload is Payload.Change && EXT_DELTAS !in extensions) {
+            packer.insertObject(withoutDelta(payload.d, payload.h), this, schemas)
+        } else if (payload is Payload.Creation || payload is Payload.Change) {
+            packer.insertObject(payload.d, this, schemas)
+        } else {
+            packer.insert(payload.d, this)
         }
     }
-    
-    packer.flush()
-    return packer.toMessageBuffer().also { packer.close() }.array()
 }
 
-internal fun PersistenceManager.unpack(bytes: ByteArray): Payload {
-    val unpacker = MessagePack.newDefaultUnpacker(bytes)
+/**
+ * Unpacks a payload. When a filter is provided, it is consulted as soon as the message id header has been read (which is
+ * always packed before `d`) and null is returned without decoding the rest of the payload if it rejects the id.
+ */
+internal fun PersistenceManager.unpack(frame: ByteBuffer, filter: ((MessageId) -> Boolean)? = null, schemas: SchemaTable? = null): Payload? {
+    val source = if (frame.hasArray()) frame else ByteBuffer.wrap(frame.remainingBytes())
+    val unpacker = MessagePack.newDefaultUnpacker(source.array(), source.arrayOffset() + source.position(), source.remaining())
+    val deferrable = if (lazyMaterialization) source else null //Created objects are sliced out of it
     
     if (!unpacker.nextFormat.valueType.isMapType) throw InputMismatchException("Expected map, did not get one!")
     
@@ -76,11 +181,16 @@ internal fun PersistenceManager.unpack(bytes: ByteArray): Payload {
     var d: Map<String, Any?>? = null
     var h: Long? = null
     var oh: Long? = null
+    var o: Long? = null
+    var s: Long? = null
+    var k: Long? = null
+    var c: Long? = null
+    var filtered = filter == null
     
     for (i in 0..(unpacker.unpackMapHeader() - 1)) {
         if (!unpacker.nextFormat.valueType.isStringType) throw InputMismatchException("Expected string key, did not get one!")
         
-        val key = unpacker.unpackString()
+        val key = unpacker.unpackKey(this)
         when (key) {
             "v" -> {
                 v = unpacker.unpackInt()
@@ -92,7 +202,15 @@ internal fun PersistenceManager.unpack(bytes: ByteArray): Payload {
                 op = unpacker.unpackInt()
             }
             "d" -> {
-                d = unpacker.consumeMapFully(unpacker.unpackMapHeader(), this)
+                if (op == OpCode.SEED.ordinal) {
+                    d = unpacker.unpackSeedData(this)
+                } else if (schemas != null && op == OpCode.INITIALIZE.ordinal) {
+                    d = unpacker.unpackInitializeData(this, schemas, source) //Decoded in parallel (or lazily) afterwards
+                } else if (schemas != null && unpacker.nextFormat.valueType == ValueType.ARRAY) {
+                    d = unpacker.unpackObjectData(this, schemas, op == OpCode.CREATION.ordinal, deferrable)
+                } else {
+                    d = unpacker.consumeMapFully(unpacker.unpackMapHeader(), this)
+                }
             }
             "h" -> {
                 h = unpacker.unpackLong()
@@ -100,9 +218,32 @@ internal fun PersistenceManager.unpack(bytes: ByteArray): Payload {
             "oh" -> {
                 oh = unpacker.unpackLong()
             }
+            "o" -> {
+                o = unpacker.unpackLong()
+            }
+            "s" -> {
+                s = unpacker.unpackLong()
+            }
+            "k" -> {
+                k = unpacker.unpackLong()
+            }
+            "c" -> {
+                c = unpacker.unpackLong()
+            }
+            else -> {
+                unpacker.skipValue() //Unknown field, skip it so the rest of the payload stays readable
+            }
+        }
+        
+        if (!filtered && o != null && s != null) {
+            filtered = true
+            if (!filter!!(MessageId(o, s)))
+                return null //Already seen, don't bother decoding the rest
         }
     }
     
+    val id = if (o != null && s != null) MessageId(o, s) else null
+    
     val payload: Payload
     
     when(ops[op]) {
@@ -116,35 +257,157 @@ internal fun PersistenceManager.unpack(bytes: ByteArray): Payload {
             payload = Payload.Rejection(t)
         }
         OpCode.PING -> {
-            payload = Payload.Ping(t)
+            payload = Payload.Ping(t, d)
         }
         OpCode.PONG -> {
-            payload = Payload.Pong(t)
+            payload = Payload.Pong(t, d)
         }
         OpCode.KICK -> {
             payload = Payload.Kick(t)
         }
         OpCode.INITIALIZE -> {
-            payload = Payload.Initialize(t, InitializeValueWrapper((d!![WRAPPER_KEY] as List<Any?>).toTypedArray(), d[RESPOND_KEY] as Boolean))
+            payload = Payload.Initialize(t, InitializeValueWrapper((d!![WRAPPER_KEY] as List<Any?>).toTypedArray(), d[RESPOND_KEY] as Boolean,
+                    (d[KEYS_KEY] as? List<*>)?.map { (it as? Number)?.toLong() }, d[STAMPS_KEY] as? List<List<*>?>, 
+                    (d[HASHES_KEY] as? List<*>)?.map { (it as? Number)?.toLong() }), id)
         }
         OpCode.CREATION -> {
-            payload = Payload.Creation(t, d!!, h!!)
+            payload = Payload.Creation(t, d!!, h!!, id, c)
         }
         OpCode.CHANGE -> {
-            payload = Payload.Change(t, d!!, h!!, oh!!)
+            payload = Payload.Change(t, d!!, h!!, oh!!, id, k, c)
         }
         OpCode.REMOVAL -> {
-            payload = Payload.Removal(t, h!!)
+            payload = Payload.Removal(t, h!!, id, k)
+        }
+        OpCode.IHAVE -> {
+            payload = Payload.IHave(t, d!!)
+        }
+        OpCode.GRAFT -> {
+            payload = Payload.Graft(t, d!!)
+        }
+        OpCode.PRUNE -> {
+            payload = Payload.Prune(t)
+        }
+        OpCode.SCHEMA -> {
+            payload = Payload.Schema(t, d!!)
+        }
+        OpCode.BULK_REMOVAL -> {
+            payload = Payload.BulkRemoval(t, d!!, h, id)
+        }
+        OpCode.SEED -> {
+            payload = Payload.Seed(t, d!!, h)
         }
     }
     
     return payload
 }
 
+/**
+ * Packs object data, positionally if possible. Full objects are packed as `[schema id, values...]` and partial objects
+ * (i.e. CHANGE data) are packed as `[-(schema id + 1), field id, value, field id, value...]`, the sign tells them apart
+ * since the lengths alone can't (e.g. a single changed property of a schema with two properties).
+ */
+internal fun MessageBufferPacker.insertObject(data: Map<String, Any?>, context: PersistenceManager, schemas: SchemaTable?) {
+    if (schemas == null || data !is ObjectData || data.type == null) {
+        insert(data, context)
+        return
+    }
+    
+    val schema = schemas.schemaFor(context, data.type)
+    val aligned = data.names == schema.names
+    if (data.indices == null) {
+        packArrayHeader(1 + schema.names.size)
+        packInt(schema.id)
+        if (aligned) 
+            data.propertyValues.forEach { insert(it, context) }
+        else 
+            schema.names.forEach { insert(data[it], context) }
+    } else {
+        packArrayHeader(1 + data.size * 2)
+        packInt(-(schema.id + 1)) //Negative ids mark sparse data, the length alone can be ambiguous
+        for (i in 0..(data.size - 1)) {
+            packInt(if (aligned) data.indexAt(i) else schema.names.indexOf(data.names[data.indexAt(i)]))
+            insert(data.propertyValues[i], context)
+        }
+    }
+}
+
+/**
+ * Unpacks object data packed by [insertObject]. The returned data is sparse if it doesn't contain every property of its
+ * schema. When materializing and the type is known locally, full objects are decoded straight into a new instance, or 
+ * (when a source is provided) their packed values are sliced out of the source to be decoded later.
+ * 
+ * @param deferrable The buffer the unpacker reads from, if decoding may be deferred (see 
+ * [PersistenceManager.lazyMaterialization] and [SocketHook.initialize]).
+ */
+internal fun MessageUnpacker.unpackObjectData(context: PersistenceManager, schemas: SchemaTable, materialize: Boolean = false, 
+                                              deferrable: ByteBuffer? = null): ObjectData {
+    val length = unpackArrayHeader()
+    val id = unpackInt()
+    if (id >= 0) {
+        val schema = schemas[id]
+        if (length - 1 != schema.names.size) 
+            throw InputMismatchException("Expected ${schema.names.size} values for schema $id, got ${length - 1}!")
+        if (materialize && deferrable != null && schema.decoder != null) {
+            val start = totalReadBytes
+            for (i in 1..(length - 1)) skipValue()
+            return ObjectData(EncodedValues(deferrable.bytesBetween(start, totalReadBytes), length - 1, schema, context))
+        }
+        if (materialize && schema.decoder != null) {
+            val instance = schema.decoder.decode(this, context, schema.positional!!, length - 1)
+            return ObjectData(schema.type, schema.names, null, null, schema.properties, instance)
+        }
+        
+        val values = arrayOfNulls<Any?>(length - 1)
+        for (i in 0..(values.size - 1)) {
+            values[i] = unpackProperty(schema.names.getOrNull(i), context)
+        }
+        return ObjectData(schema.type, schema.names, values, null, schema.properties)
+    } else {
+        val schema = schemas[-id - 1]
+        if ((length - 1) % 2 != 0) throw InputMismatchException("Expected pairs of field ids and values for schema ${-id - 1}!")
+        val count = (length - 1) / 2
+        val indices = IntArray(count)
+        val values = arrayOfNulls<Any?>(count)
+        for (i in 0..(count - 1)) {
+            indices[i] = unpackInt()
+            values[i] = unpackProperty(schema.names.getOrNull(indices[i]), context)
+        }
+        return ObjectData(schema.type, schema.names, values, indices, schema.properties)
+    }
+}
+
+private fun MessageUnpacker.unpackSeedData(context: PersistenceManager): Map<String, Any?> {
+    val map = mutableMapOf<String, Any?>()
+    for (i in 0..(unpackMapHeader() - 1)) {
+        val key = unpackKey(context)
+        map[key] = if (nextFormat.valueType == ValueType.BINARY) readPayload(unpackBinaryHeader()) else unpackAny(context)
+    }
+    return map
+}
+
+private fun MessageUnpacker.unpackInitializeData(context: PersistenceManager, schemas: SchemaTable, deferrable: ByteBuffer?): Map<String, Any?> {
+    val map = mutableMapOf<String, Any?>()
+    for (i in 0..(unpackMapHeader() - 1)) {
+        val key = unpackKey(context)
+        if (key == WRAPPER_KEY && nextFormat.valueType == ValueType.ARRAY) {
+            val objects = mutableListOf<Any?>()
+            for (j in 0..(unpackArrayHeader() - 1)) {
+                objects += if (nextFormat.valueType == ValueType.ARRAY) unpackObjectData(context, schemas, true, deferrable) else unpackAny(context)
+            }
+            map[key] = objects
+        } else {
+            map[key] = unpackAny(context)
+        }
+    }
+    return map
+}
+
 internal fun MessageUnpacker.consumeMapFully(mapLength: Int, context: PersistenceManager): Map<String, Any?> {
     val map = mutableMapOf<String, Any?>()
     for (i in 0..(mapLength-1)) {
-        map[unpackString()] = unpackAny(context)
+        val key = unpackKey(context)
+        map[key] = unpackProperty(key, context)
     }
     return map
 }
@@ -160,7 +423,8 @@ internal fun MessageUnpacker.unpackAny(context: PersistenceManager): Any? {
             return unpackBoolean()
         }
         ValueType.INTEGER -> {
-            return unpackInt()
+            val value = unpackLong()
+            return if (value >= Int.MIN_VALUE && value <= Int.MAX_VALUE) value.toInt() else value
         }
         ValueType.FLOAT -> {
             return unpackFloat()
@@ -185,7 +449,8 @@ internal fun MessageUnpacker.unpackAny(context: PersistenceManager): Any? {
             val mapLen = unpackMapHeader()
             val map = mutableMapOf<Any?, Any?>()
             for (i in 0..(mapLen-1)) {
-                map[unpackAny(context)] = unpackAny(context)
+                val key = if (nextFormat.valueType == ValueType.STRING) unpackKey(context) else unpackAny(context)
+                map[key] = unpackProperty(key as? String, context)
             }
             return map
         }
@@ -232,7 +497,7 @@ internal fun MessageBufferPacker.insert(value: Any?, context: PersistenceManager
             is Enum<*> -> {
                 this.packInt(value.ordinal)
             }
-            is List<*> -> {
+            is Collection<*> -> { //Sets are converted back from arrays by their property's type
                 this.packArrayHeader(value.size)
                 value.forEach {
                     this.insert(it, context)
@@ -253,6 +518,10 @@ internal fun MessageBufferPacker.insert(value: Any?, context: PersistenceManager
                 }
             }
             else -> {
+                if (context.isNested(value)) { //i.e. read from a decoded instance
+                    this.insert(context.mapNested(value), context)
+                    return
+                }
                 val transformer = context.customDataTransformers.firstOrNull { it.canAccept(value.javaClass) } ?: throw InputMismatchException("Unexpected data type ${value.javaClass}!")
                 val bytes = transformer.writeToBytes(value)
                 this.packExtensionTypeHeader(transformer.type(), bytes.size)
@@ -262,15 +531,43 @@ internal fun MessageBufferPacker.insert(value: Any?, context: PersistenceManager
     }
 }
 
-data class InitializeValueWrapper(val p: Array<Any?>,
-                                  val r: Boolean) : HashMap<String, Any?>()
+/**
+ * @param k The keys of the objects (see [Replica]), null for objects which were never changed.
+ * @param s The flattened stamps of the objects (see [Replica.flatten]), null for objects which were never changed.
+ * @param h The hashes of the objects, if they were received.
+ */
+data class InitializeValueWrapper @JvmOverloads constructor(val p: Array<Any?>,
+                                                            val r: Boolean,
+                                                            val k: List<Long?>? = null,
+                                                            val s: List<List<*>?>? = null,
+                                                            val h: List<Long?>? = null) : HashMap<String, Any?>() {
+
+    /**
+     * Gets the hashes of the objects, these are only known for local objects (or if they were received).
+     */
+    internal fun hashes(context: PersistenceManager): List<Long?>? {
+        if (h != null) return h
+        if (p.any { it is Map<*, *> }) return null //Forwarded without hashes
+        return p.map { it?.let { context.generateHash(it) } }
+    }
+}
+
+/**
+ * This uniquely identifies a replicated payload, it is made up of the id of the node which originated it and a 
+ * sequence number which is unique to that node.
+ */
+data class MessageId(val origin: Long,
+                     val sequence: Long)
 
 sealed class Payload(val v: Int? = null, 
                      val t: Long = System.currentTimeMillis(),
                      val op: Int,
                      val d: Map<String, Any?>? = null,
                      val h: Long? = null,
-                     val oh: Long? = null) {
+                     val oh: Long? = null,
+                     val id: MessageId? = null,
+                     val k: Long? = null,
+                     val c: Long? = null) {
     
     class Identify(v: Int? = null,
                    t: Long = System.currentTimeMillis(),
@@ -282,28 +579,164 @@ sealed class Payload(val v: Int? = null,
     
     class Rejection(t: Long = System.currentTimeMillis()) : Payload(t = t, op = OpCode.REJECTION.ordinal)
     
-    class Ping(t: Long = System.currentTimeMillis()) : Payload(t = t, op = OpCode.PING.ordinal)
+    class Ping(t: Long = System.currentTimeMillis(),
+               d: Map<String, Any?>? = null) : Payload(t = t, op = OpCode.PING.ordinal, d = d) {
+        
+        constructor(echo: Long) : this(d = mapOf("e" to echo))
+        
+        /**
+         * The sender's monotonic timestamp which is echoed back in the PONG, null for legacy nodes.
+         */
+        val echo: Long?
+            get() = (d?.get("e") as? Number)?.toLong()
+    }
     
-    class Pong(t: Long = System.currentTimeMillis()) : Payload(t = t, op = OpCode.PONG.ordinal)
+    class Pong(t: Long = System.currentTimeMillis(),
+               d: Map<String, Any?>? = null) : Payload(t = t, op = OpCode.PONG.ordinal, d = d) {
+        
+        constructor(echo: Long?) : this(d = echo?.let { mapOf("e" to it) })
+        
+        val echo: Long?
+            get() = (d?.get("e") as? Number)?.toLong()
+    }
     
     class Kick(t: Long = System.currentTimeMillis()) : Payload(t = t, op = OpCode.KICK.ordinal)
     
     class Initialize(t: Long = System.currentTimeMillis(),
-                     d: InitializeValueWrapper) : Payload(t = t, op = OpCode.INITIALIZE.ordinal, d = d)
+                     d: InitializeValueWrapper,
+                     id: MessageId? = null) : Payload(t = t, op = OpCode.INITIALIZE.ordinal, d = d, id = id)
+    
+    /**
+     * @param c The time of the creation (see [Stamp]), creations older than the last clear of their type are discarded.
+     */
+    class Creation @JvmOverloads constructor(t: Long = System.currentTimeMillis(),
+                                             d: Map<String, Any?>,
+                                             h: Long,
+                                             id: MessageId? = null,
+                                             c: Long? = null) : Payload(t = t, op = OpCode.CREATION.ordinal, d = d, h = h, id = id, c = c)
+    
+    /**
+     * @param k The key of the changed object (see [Replica]).
+     * @param c The [HybridClock] timestamp of the change.
+     */
+    class Change @JvmOverloads constructor(t: Long = System.currentTimeMillis(),
+                                           d: Map<String, Any?>,
+                                           h: Long,
+                                           oh: Long,
+                                           id: MessageId? = null,
+                                           k: Long? = null,
+                                           c: Long? = null) : Payload(t = t, op = OpCode.CHANGE.ordinal, d = d, h = h, oh = oh, id = id, k = k, c = c)
+    
+    /**
+     * @param k The key of the removed object (see [Replica]).
+     */
+    class Removal @JvmOverloads constructor(t: Long = System.currentTimeMillis(),
+                                            h: Long,
+                                            id: MessageId? = null,
+                                            k: Long? = null) : Payload(t = t, op = OpCode.REMOVAL.ordinal, h = h, id = id, k = k)
+    
+    /**
+     * Removes many objects at once, either the objects with the listed hashes (along with their keys, see [Replica]) or 
+     * every object of a type (identified by its name, or by its property names if it is named differently locally) which 
+     * wasn't created or changed after the clear.
+     * 
+     * @param h The hash of one of the removed objects, or the type hash of the cleared type (which picks the lane).
+     */
+    class BulkRemoval(t: Long = System.currentTimeMillis(),
+                      d: Map<String, Any?>,
+                      h: Long? = null,
+                      id: MessageId? = null) : Payload(t = t, op = OpCode.BULK_REMOVAL.ordinal, d = d, h = h, id = id) {
+        
+        internal constructor(hashes: List<Long>, keys: List<Long?>?, id: MessageId?) 
+                : this(d = if (keys == null) mapOf(HASHES_KEY to hashes) else mapOf(HASHES_KEY to hashes, KEYS_KEY to keys), h = hashes.firstOrNull(), id = id)
+        
+        internal constructor(type: Class<*>, names: List<String>, typeHash: Long, stamp: Stamp, removed: List<Long>?, id: MessageId?) 
+                : this(d = mapOf(TYPE_KEY to type.name, NAMES_KEY to names, CLEAR_KEY to listOf(stamp.time, stamp.node)), h = typeHash, id = id) {
+            this.removed = removed
+        }
+
+        /**
+         * The hashes of the objects a clear removed locally, these are sent as REMOVAL payloads to peers which didn't 
+         * negotiate [EXT_BULK].
+         */
+        @Volatile internal var removed: List<Long>? = null
+        
+        val hashes: List<Long>?
+            get() = (d!![HASHES_KEY] as? List<*>)?.map { (it as Number).toLong() }
+        
+        val keys: List<Long?>?
+            get() = (d!![KEYS_KEY] as? List<*>)?.map { (it as? Number)?.toLong() }
+        
+        val names: List<String>?
+            get() = (d!![NAMES_KEY] as? List<*>)?.map { it as String }
+        
+        val typeName: String?
+            get() = d!![TYPE_KEY] as? String
+        
+        internal val stamp: Stamp?
+            get() = (d!![CLEAR_KEY] as? List<*>)?.let { Stamp((it[0] as Number).toLong(), (it[1] as Number).toLong()) }
+
+        /**
+         * Splits this into a REMOVAL payload per object.
+         */
+        internal fun split(): List<Removal> {
+            val keys = keys
+            return (hashes ?: removed ?: emptyList()).mapIndexed { i, hash -> Removal(t, hash, k = keys?.get(i)) }
+        }
+    }
+    
+    /**
+     * Seeds a new peer with either a block of a snapshot (see [writeSnapshot]) or the hashes of objects which were 
+     * removed since the snapshot was written.
+     * 
+     * @param h The hash of the block's first object (which picks the lane), if any.
+     */
+    class Seed(t: Long = System.currentTimeMillis(),
+               d: Map<String, Any?>,
+               h: Long? = null) : Payload(t = t, op = OpCode.SEED.ordinal, d = d, h = h) {
+        
+        internal constructor(block: ByteArray?, removed: List<Long>?, h: Long?) : this(d = mapOf(BLOCK_KEY to block, HASHES_KEY to removed), h = h)
+        
+        val block: ByteArray?
+            get() = d!![BLOCK_KEY] as ByteArray?
+        
+        val removed: List<Long>?
+            get() = (d!![HASHES_KEY] as? List<*>)?.map { (it as Number).toLong() }
+    }
     
-    class Creation(t: Long = System.currentTimeMillis(),
-                   d: Map<String, Any?>,
-                   h: Long) : Payload(t = t, op = OpCode.CREATION.ordinal, d = d, h = h)
+    class IHave(t: Long = System.currentTimeMillis(),
+                d: Map<String, Any?>) : Payload(t = t, op = OpCode.IHAVE.ordinal, d = d) {
+        
+        constructor(ids: List<MessageId>) : this(d = mapOf("i" to ids.flatMap { listOf(it.origin, it.sequence) }))
+        
+        val ids: List<MessageId>
+            get() = (d!!["i"] as List<*>).map { (it as Number).toLong() }.let { flat -> (0..(flat.size / 2 - 1)).map { MessageId(flat[it * 2], flat[it * 2 + 1]) } }
+    }
+    
+    class Graft(t: Long = System.currentTimeMillis(),
+                d: Map<String, Any?>) : Payload(t = t, op = OpCode.GRAFT.ordinal, d = d) {
+        
+        constructor(id: MessageId) : this(d = mapOf("o" to id.origin, "s" to id.sequence))
+        
+        val graftId: MessageId
+            get() = MessageId((d!!["o"] as Number).toLong(), (d["s"] as Number).toLong())
+    }
     
-    class Change(t: Long = System.currentTimeMillis(),
-                 d: Map<String, Any?>,
-                 h: Long,
-                 oh: Long) : Payload(t = t, op = OpCode.CHANGE.ordinal, d = d, h = h, oh = oh)
+    class Prune(t: Long = System.currentTimeMillis()) : Payload(t = t, op = OpCode.PRUNE.ordinal)
     
-    class Removal(t: Long = System.currentTimeMillis(),
-                  h: Long) : Payload(t = t, op = OpCode.REMOVAL.ordinal, h = h)
+    class Schema(t: Long = System.currentTimeMillis(),
+                 d: Map<String, Any?>) : Payload(t = t, op = OpCode.SCHEMA.ordinal, d = d) {
+        
+        internal constructor(schema: com.austinv11.persistence.internal.Schema) : this(d = mapOf("i" to schema.id, "p" to schema.names))
+        
+        val schemaId: Int
+            get() = (d!!["i"] as Number).toInt()
+        
+        val names: List<String>
+            get() = (d!!["p"] as List<*>).map { it as String }
+    }
     
-    fun toMap(): Map<String, Any> {
+    fun toMap(extensions: Set<String> = emptySet()): Map<String, Any> {
         val map = mutableMapOf<String, Any>()
         
         if (v != null) map["v"] = v
@@ -312,6 +745,14 @@ sealed class Payload(val v: Int? = null,
 //        if (d != null) map["d"] = d ignore d here, process it in pack() instead
         if (h != null) map["h"] = h
         if (oh != null) map["oh"] = oh
+        if (id != null && EXT_MESSAGE_IDS in extensions) { //Only peers which negotiated it understand these keys
+            map["o"] = id.origin
+            map["s"] = id.sequence
+        }
+        if (EXT_LWW in extensions) {
+            if (k != null) map["k"] = k
+            if (c != null) map["c"] = c
+        }
         
         return map
     }
@@ -0,0 +1,31 @@
+package com.austinv11.persistence.internal
+
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+
+/**
+ * The number of elements each task of [parallelMap] maps, smaller lists are mapped by the calling thread.
+ */
+internal const val PARALLEL_CHUNK_SIZE = 2048
+
+/**
+ * Maps the elements of a list in chunks on a fork-join pool, the results keep the order of the elements. The chunks are
+ * forked into the pool of the calling thread if it is a pool's worker (which helps map them rather than blocking, so
+ * this can't starve the pool) or into the common pool otherwise.
+ * 
+ * @param chunkSize The number of elements each task maps, this should be lowered for expensive transformations.
+ */
+internal fun <T, R> List<T>.parallelMap(chunkSize: Int = PARALLEL_CHUNK_SIZE, transform: (T) -> R): List<R> {
+    if (size <= chunkSize) return map(transform)
+    
+    val results = arrayOfNulls<Any?>(size)
+    ForkJoinTask.invokeAll((0..(size - 1) step chunkSize).map { from ->
+        object : RecursiveAction() {
+            override fun compute() {
+                for (i in from..(Math.min(from + chunkSize, size) - 1)) results[i] = transform(this@parallelMap[i])
+            }
+        }
+    }) //Rethrows the first failure
+    @Suppress("UNCHECKED_CAST")
+    return results.asList() as List<R>
+}
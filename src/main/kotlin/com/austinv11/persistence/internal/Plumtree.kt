@@ -0,0 +1,124 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.logger
+import kotlinx.coroutines.experimental.delay
+import kotlinx.coroutines.experimental.launch
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+internal const val LAZY_PUSH_INTERVAL = 50L
+internal const val GRAFT_TIMEOUT = 250L
+internal const val MESSAGE_CACHE_SIZE = 8192
+
+/**
+ * This disseminates replicated payloads via Plumtree (epidemic broadcast trees). Payloads are eagerly pushed along a
+ * spanning tree while the remaining links only carry batched ids (IHAVE). Links which deliver duplicates are pruned
+ * from the tree and links announcing payloads which never arrive are grafted back into it.
+ *
+ * Payloads without ids, INITIALIZE payloads and connections which didn't negotiate [EXT_PLUMTREE] are always flooded.
+ */
+internal class Plumtree(val transport: Transport) {
+
+    private val cache = object : LinkedHashMap<MessageId, Payload>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<MessageId, Payload>?) = size > MESSAGE_CACHE_SIZE
+    }
+    private val missing = ConcurrentHashMap<MessageId, MutableList<Transport.Link>>()
+    private val announcements = ConcurrentHashMap<Transport.Link, MutableList<MessageId>>()
+
+    init {
+        launch(transport.context.encode) {
+            while (!transport.closed) {
+                delay(LAZY_PUSH_INTERVAL)
+                flushAnnouncements()
+            }
+        }
+    }
+
+    private val Transport.Link.isTreeMember: Boolean
+        get() = EXT_PLUMTREE in extensions
+
+    suspend fun broadcast(payload: Payload, except: Transport.Link? = null) {
+        val id = payload.id
+        if (id == null || payload is Payload.Initialize) {
+            transport.connections.filterNot { it == except }.forEach { it.sendCompatible(payload) }
+            return
+        }
+
+        synchronized(cache) { cache[id] = payload }
+        transport.connections.filterNot { it == except }.forEach {
+            if (it.eager || !it.isTreeMember)
+                it.sendCompatible(payload)
+            else
+                announcements.computeIfAbsent(it) { mutableListOf() }.let { synchronized(it) { it += id } }
+        }
+    }
+
+    /**
+     * Called when a payload is received for the first time.
+     */
+    fun received(id: MessageId) {
+        missing.remove(id)
+    }
+
+    /**
+     * Called when a connection delivered an already seen payload, so it is redundant in the tree.
+     */
+    fun duplicate(from: Transport.Link) {
+        if (from.isTreeMember && from.eager) {
+            from.eager = false
+            launch(transport.context.encode) { from.send(Payload.Prune()) }
+        }
+    }
+
+    fun pruned(from: Transport.Link) {
+        from.eager = false
+    }
+
+    suspend fun grafted(from: Transport.Link, id: MessageId) {
+        from.eager = true
+        val payload = synchronized(cache) { cache[id] }
+        if (payload != null)
+            from.sendCompatible(payload)
+        else
+            logger.debug("Unable to fulfill graft request for {}, it is no longer cached", id)
+    }
+
+    fun announced(from: Transport.Link, ids: List<MessageId>) {
+        ids.filterNot { it.origin == transport.context.nodeId || transport.context.seen.hasSeen(it) }.forEach {
+            var isNew = false
+            missing.computeIfAbsent(it) { isNew = true; CopyOnWriteArrayList() }.add(from)
+            if (isNew)
+                awaitMissing(it)
+        }
+    }
+
+    private fun awaitMissing(id: MessageId) {
+        launch(transport.context.encode) {
+            while (true) {
+                delay(GRAFT_TIMEOUT)
+                val announcers = missing[id] ?: return@launch //Received in the mean time
+                val announcer = announcers.firstOrNull { transport.connections.contains(it) }
+                if (announcer == null) {
+                    missing.remove(id)
+                    return@launch
+                }
+                announcers.remove(announcer)
+                logger.trace("Payload {} is missing, grafting {}:{}", id, announcer.host, announcer.port)
+                announcer.eager = true
+                announcer.send(Payload.Graft(id))
+            }
+        }
+    }
+
+    private suspend fun flushAnnouncements() {
+        for ((connection, ids) in announcements) {
+            val batch = synchronized(ids) { ids.toList().also { ids.clear() } }
+            if (batch.isEmpty()) continue
+
+            if (transport.connections.contains(connection))
+                connection.send(Payload.IHave(batch))
+            else
+                announcements.remove(connection)
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.Property
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.matchProperties
+import java.util.InputMismatchException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * This represents the properties of an object in a fixed order. It is a (read-only) [Map] of property names to values
+ * so it can be used anywhere string keyed object data is expected, but it also allows objects to be encoded
+ * positionally and decoded without matching property names.
+ *
+ * @param type The type of the object if known.
+ * @param names All property names of the type, in order.
+ * @param values The property values, aligned with [indices] (or [names] if all properties are present). This is null 
+ * when the object was decoded straight into [instance] (or its decoding was deferred, see [EncodedValues]), in which case the 
+ * values are read back from it on demand.
+ * @param indices The indices (into [names]) of the properties present, or null if all properties are present.
+ * @param properties The local properties matching [names] (for decoded data), this allows decoding to skip matching
+ * property names.
+ * @param instance The already decoded object, if any.
+ */
+class ObjectData(val type: Class<*>?,
+                 val names: List<String>,
+                 values: Array<Any?>?,
+                 val indices: IntArray? = null,
+                 internal val properties: List<Property<*>?>? = null,
+                 internal val instance: Any? = null) : AbstractMap<String, Any?>() {
+    
+    internal var encoded: EncodedValues? = null
+        private set
+    private var decodedValues = values
+
+    internal constructor(encoded: EncodedValues) : this(encoded.schema.type, encoded.schema.names, null, null, encoded.schema.properties) {
+        this.encoded = encoded
+    }
+    
+    val propertyValues: Array<Any?>
+        get() = decodedValues ?: (encoded?.values() ?: Array(names.size) { properties?.get(it)?.getter?.invokeWithArguments(instance) }).also { decodedValues = it }
+
+    override val size: Int
+        get() = indices?.size ?: names.size
+
+    override val entries: Set<Map.Entry<String, Any?>>
+        get() = (0..(size - 1)).mapTo(LinkedHashSet()) { java.util.AbstractMap.SimpleImmutableEntry(names[indexAt(it)], propertyValues[it]) }
+
+    override fun get(key: String): Any? {
+        val i = positionOf(key)
+        return if (i < 0) null else propertyValues[i]
+    }
+
+    override fun containsKey(key: String): Boolean = positionOf(key) >= 0
+
+    /**
+     * Gets the index (into [names]) of the nth value.
+     */
+    fun indexAt(position: Int): Int = indices?.get(position) ?: position
+
+    private fun positionOf(key: String): Int {
+        val index = names.indexOf(key)
+        return if (indices == null) index else indices.indexOf(index)
+    }
+
+    /**
+     * Creates a sparse copy of this data which only contains the provided property.
+     */
+    fun only(name: String): ObjectData {
+        val index = names.indexOf(name)
+        if (index < 0) return ObjectData(type, names, emptyArray(), IntArray(0))
+        return ObjectData(type, names, arrayOf(propertyValues[index]), intArrayOf(index))
+    }
+}
+
+/**
+ * This is an outbound schema, the properties of a type in the order they are sent positionally.
+ */
+internal class Schema(val id: Int,
+                      val type: Class<*>,
+                      val properties: List<Property<*>>) {
+
+    val names = properties.map { it.name }
+    @Volatile var announced = false
+}
+
+/**
+ * This is a schema defined by a peer.
+ */
+internal class InboundSchema(val names: List<String>,
+                             val type: Class<*>?,
+                             val properties: List<Property<*>?>?,
+                             val decoder: ClassDecoder?) {
+    
+    val positional = decoder?.positional(names)
+}
+
+/**
+ * This holds the schemas established on a single connection. Each type's schema is sent in a SCHEMA payload before it
+ * is first used, after which objects are sent as arrays (prefixed with the schema id) in the schema's property order and
+ * changes are sent as (field id, value) pairs (prefixed with `-(schema id + 1)`).
+ */
+internal class SchemaTable {
+
+    private val outbound = ConcurrentHashMap<Class<*>, Schema>()
+    private val inbound = ConcurrentHashMap<Int, InboundSchema>()
+    private val nextId = AtomicInteger()
+
+    fun schemaFor(manager: PersistenceManager, type: Class<*>): Schema {
+        return outbound.computeIfAbsent(type) { Schema(nextId.getAndIncrement(), type, manager.matchProperties(type as Class<Any>)) }
+    }
+
+    /**
+     * Gets the schemas which haven't been sent to the peer yet, marking them as announced. This must be called while
+     * holding the connection's write lock so that the schemas are written before any frame using them.
+     */
+    fun unannounced(): List<Schema> {
+        return outbound.values.filter { !it.announced }.onEach { it.announced = true }.sortedBy { it.id }
+    }
+
+    fun define(manager: PersistenceManager, payload: Payload.Schema) {
+        val names = payload.names
+        val type = try {
+            manager.findType(names.associate { it to null })
+        } catch (e: Exception) {
+            logger.debug("Unable to find a type for schema {}", names)
+            null
+        }
+        val decoder = type?.let { manager.decoderFor(it) }
+        val properties = decoder?.let { names.map { name -> it.properties.firstOrNull { it.name == name } } }
+        inbound[payload.schemaId] = InboundSchema(names, type, properties, decoder)
+    }
+
+    operator fun get(id: Int): InboundSchema {
+        return inbound[id] ?: throw InputMismatchException("Unknown schema $id!")
+    }
+}
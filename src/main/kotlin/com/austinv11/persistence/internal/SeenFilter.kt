@@ -0,0 +1,85 @@
+package com.austinv11.persistence.internal
+
+import java.util.TreeMap
+import java.util.concurrent.ConcurrentHashMap
+
+internal const val SEEN_BLOCK_SIZE = 1024
+private const val WORD_COUNT = SEEN_BLOCK_SIZE / 64
+
+/**
+ * This tracks the [MessageId]s which have already been received in order to drop duplicate deliveries caused by
+ * flooding in meshed topologies.
+ *
+ * Rather than a probabilistic filter (which would occasionally drop legitimate payloads), this keeps bitmaps of
+ * [SEEN_BLOCK_SIZE] consecutive sequence numbers per origin. Blocks are remembered for the time window after an id in
+ * them was last seen, once the oldest blocks expire ids at or below them count as already seen (they were delivered, or
+ * given up on, long ago). Origins which haven't been heard from within the time window are forgotten.
+ */
+internal class SeenFilter(@Volatile var windowMillis: Long) {
+
+    private val origins = ConcurrentHashMap<Long, OriginWindow>()
+    @Volatile private var lastSweep = System.currentTimeMillis()
+
+    /**
+     * Marks an id as seen.
+     *
+     * @return True if this is the first time the id was seen, false if it is a duplicate.
+     */
+    fun firstSighting(id: MessageId): Boolean {
+        val now = System.currentTimeMillis()
+        if (now - lastSweep > windowMillis) {
+            lastSweep = now
+            origins.entries.removeIf { now - it.value.lastSeen > windowMillis }
+        }
+
+        return origins.computeIfAbsent(id.origin) { OriginWindow() }.mark(id.sequence, now, windowMillis)
+    }
+
+    /**
+     * Checks if an id was already seen without marking it.
+     */
+    fun hasSeen(id: MessageId): Boolean {
+        return origins[id.origin]?.contains(id.sequence) ?: false
+    }
+
+    private class OriginWindow {
+
+        private val blocks = TreeMap<Long, Block>()
+        private var floor = -1L //Blocks up to this one expired
+        @Volatile var lastSeen = 0L
+
+        @Synchronized fun mark(sequence: Long, now: Long, windowMillis: Long): Boolean {
+            lastSeen = now
+            while (blocks.isNotEmpty() && now - blocks.firstEntry().value.touched > windowMillis)
+                floor = blocks.pollFirstEntry().key
+
+            val index = sequence / SEEN_BLOCK_SIZE
+            if (index <= floor) return false //Too old, it was delivered through a faster path long ago
+            val block = blocks.getOrPut(index) { Block() }
+            block.touched = now
+            return block.set((sequence % SEEN_BLOCK_SIZE).toInt())
+        }
+
+        @Synchronized fun contains(sequence: Long): Boolean {
+            val index = sequence / SEEN_BLOCK_SIZE
+            return index <= floor || blocks[index]?.isSet((sequence % SEEN_BLOCK_SIZE).toInt()) ?: false
+        }
+    }
+
+    private class Block {
+
+        private val bits = LongArray(WORD_COUNT)
+        var touched = 0L
+
+        /**
+         * Sets a bit, returns false if it was already set.
+         */
+        fun set(i: Int): Boolean {
+            if (isSet(i)) return false
+            bits[i ushr 6] = bits[i ushr 6] or (1L shl (i and 63))
+            return true
+        }
+
+        fun isSet(i: Int): Boolean = bits[i ushr 6] and (1L shl (i and 63)) != 0L
+    }
+}
@@ -0,0 +1,300 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.Codec
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.Store
+import com.austinv11.persistence.impl.LZ4Codec
+import com.austinv11.persistence.impl.NoOpCodec
+import com.austinv11.persistence.logger
+import com.austinv11.persistence.matchProperties
+import org.msgpack.core.MessagePack
+import org.msgpack.core.MessageBufferPacker
+import org.msgpack.core.MessageUnpacker
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Snapshot files start with these bytes, followed by the format version.
+ */
+internal val SNAPSHOT_MAGIC = byteArrayOf('P'.toByte(), 'P'.toByte(), 'P'.toByte(), 'S'.toByte())
+internal const val SNAPSHOT_VERSION = 1
+
+/**
+ * The most objects written to a single block of a snapshot.
+ */
+internal const val SNAPSHOT_BLOCK_SIZE = 4096
+
+private val snapshotCodec: Codec = LZ4Codec()
+
+/**
+ * This is the snapshot this node last wrote (or restored), along with the hashes of the objects which were inserted,
+ * changed or removed since. New peers are seeded from it (see [PersistenceManager.setSeeding]).
+ */
+internal class Baseline(val path: Path) {
+
+    val touched: MutableSet<Long> = ConcurrentHashMap.newKeySet()
+}
+
+/**
+ * Whether stores need to report the objects they touch (see [touched]).
+ */
+internal val PersistenceManager.tracking: Boolean
+    get() = baseline != null || pendingBaseline != null
+
+/**
+ * Records that the object with the provided hash was inserted, changed or removed since the baseline.
+ */
+internal fun PersistenceManager.touched(hash: Long) {
+    baseline?.touched?.add(hash)
+    pendingBaseline?.touched?.add(hash)
+}
+
+/**
+ * These are the objects of a single type decoded from a snapshot block.
+ */
+internal class Block(val type: Class<*>,
+                     val objects: List<Any>,
+                     val keys: List<Long?>,
+                     val stamps: List<List<*>?>)
+
+/**
+ * Writes the contents of every store to a file. Snapshot files are a sequence of `[length, hash, codec key, compressed 
+ * block]` records (after [SNAPSHOT_MAGIC] and the version), where the hash is that of the block's first object (which 
+ * picks the lane it is seeded on). Each block holds up to [SNAPSHOT_BLOCK_SIZE] objects of a single type and is a 
+ * MessagePack stream of `type name, [property names], count, [key, stamps, values...]...`.
+ */
+internal fun PersistenceManager.writeSnapshot(path: Path) {
+    val pending = if (seeding) Baseline(path) else null
+    pendingBaseline = pending //Anything touched from now on may be missing from the snapshot
+    wal?.checkpoint() //Everything logged so far is in the stores, so it will be in the snapshot
+
+    val temp = path.resolveSibling(path.fileName.toString() + ".tmp")
+    DataOutputStream(BufferedOutputStream(Files.newOutputStream(temp))).use { output ->
+        output.write(SNAPSHOT_MAGIC)
+        output.writeByte(SNAPSHOT_VERSION)
+        for ((type, store) in stores) {
+            val objects = store.snapshot().toList()
+            val chunks = (0..(objects.size - 1) step SNAPSHOT_BLOCK_SIZE).map { objects.subList(it, Math.min(it + SNAPSHOT_BLOCK_SIZE, objects.size)) }
+            chunks.parallelMap(1) { generateHash(it[0]) to encodeBlock(type, it) }.forEach {
+                output.writeInt(it.second.size)
+                output.writeLong(it.first)
+                output.write(it.second)
+            }
+        }
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    wal?.discardCheckpoint()
+    
+    if (pending != null && pendingBaseline === pending) {
+        baseline = pending
+        pendingBaseline = null
+    }
+}
+
+/**
+ * Quietly inserts the contents of a snapshot file written by [writeSnapshot].
+ *
+ * @return The number of objects read.
+ */
+internal fun PersistenceManager.readSnapshot(path: Path): Int {
+    val blocks = SnapshotReader(path).use { reader -> generateSequence { reader.next()?.second }.toList() }
+    val decoded = blocks.parallelMap(1) { decodeBlock(it) }
+    decoded.forEach { it?.let { insertBlock(it) } }
+    if (seeding) baseline = Baseline(path) //The stores match the file until they are touched
+    return decoded.sumBy { it?.objects?.size ?: 0 }
+}
+
+/**
+ * This reads the records of a snapshot file one at a time, the blocks are left compressed.
+ */
+internal class SnapshotReader(path: Path) : Closeable {
+
+    private val input = DataInputStream(BufferedInputStream(Files.newInputStream(path)))
+
+    init {
+        try {
+            val magic = ByteArray(SNAPSHOT_MAGIC.size)
+            input.readFully(magic)
+            if (!magic.contentEquals(SNAPSHOT_MAGIC)) throw IOException("$path is not a snapshot!")
+            val version = input.readUnsignedByte()
+            if (version != SNAPSHOT_VERSION) throw IOException("Unsupported snapshot version $version!")
+        } catch (e: IOException) {
+            input.close()
+            throw e
+        }
+    }
+
+    /**
+     * Reads the next record as the hash of its first object and its block, or null at the end of the file.
+     */
+    fun next(): Pair<Long, ByteArray>? {
+        val length = try { input.readInt() } catch (e: EOFException) { return null }
+        val hash = input.readLong()
+        return hash to ByteArray(length).also { input.readFully(it) }
+    }
+
+    override fun close() {
+        input.close()
+    }
+}
+
+/**
+ * Seeds a peer from the baseline snapshot: its blocks are sent as they are, followed by the objects which were touched
+ * since it was written.
+ *
+ * @return False if the snapshot couldn't be read (in which case nothing was sent).
+ */
+internal suspend fun PersistenceManager.seed(link: Transport.Link, baseline: Baseline): Boolean {
+    val reader = try { 
+        SnapshotReader(baseline.path) 
+    } catch (e: IOException) {
+        logger.warn("Unable to read snapshot {}, sending the state instead", baseline.path, e)
+        return false
+    }
+    reader.use {
+        while (true) {
+            val (hash, block) = reader.next() ?: break
+            link.send(Payload.Seed(block, null, hash))
+        }
+    }
+
+    val present = mutableMapOf<Class<*>, MutableList<Any>>()
+    val removed = mutableListOf<Long>()
+    for (hash in baseline.touched.toList()) {
+        val entry = stores.entries.firstOrNull { it.value.containsHash(hash) }
+        val obj = entry?.value?.get(hash)
+        if (obj != null) present.getOrPut(entry.key) { mutableListOf() } += obj else removed += hash
+    }
+    for ((type, objects) in present) {
+        for (from in 0..(objects.size - 1) step SNAPSHOT_BLOCK_SIZE) {
+            val chunk = objects.subList(from, Math.min(from + SNAPSHOT_BLOCK_SIZE, objects.size))
+            link.send(Payload.Seed(encodeBlock(type, chunk), null, generateHash(chunk[0])))
+        }
+    }
+    for (from in 0..(removed.size - 1) step MAX_BULK_HASHES) {
+        link.send(Payload.Seed(null, removed.subList(from, Math.min(from + MAX_BULK_HASHES, removed.size)), null))
+    }
+    return true
+}
+
+/**
+ * Packs and compresses a block of objects of a single type.
+ */
+internal fun PersistenceManager.encodeBlock(type: Class<*>, objects: Collection<Any>): ByteArray {
+    val packer = MessagePack.newDefaultBufferPacker()
+    packBlock(packer, type, objects)
+    val bytes = packer.toByteArray().also { packer.close() }
+    return byteArrayOf(snapshotCodec.key) + snapshotCodec.compress(bytes)
+}
+
+/**
+ * Packs a block of objects of a single type, see [writeSnapshot].
+ */
+internal fun PersistenceManager.packBlock(packer: MessageBufferPacker, type: Class<*>, objects: Collection<Any>) {
+    val properties = matchProperties(type as Class<Any>)
+    packer.packString(type.name)
+    packer.packArrayHeader(properties.size)
+    properties.forEach { packer.packString(it.name) }
+    packer.packInt(objects.size)
+    for (obj in objects) {
+        synchronized(obj) { //Local changes are made under the same lock, see SourceAwareProxy
+            val replica = replicas.find(obj)
+            packer.packArrayHeader(properties.size + 2)
+            packer.insert(replica?.key, this)
+            packer.insert(replica?.flatten(), this)
+            properties.forEach { packer.insert(it.getter.invokeWithArguments(obj), this) }
+        }
+    }
+}
+
+/**
+ * Decompresses and decodes a block, or returns null if its type can't be found.
+ *
+ * @param trusted Whether the block was written locally, see [unpackBlock].
+ */
+internal fun PersistenceManager.decodeBlock(block: ByteArray, trusted: Boolean = true): Block? {
+    val codec = (codecs + snapshotCodec + NoOpCodec()).firstOrNull { it.key == block[0] }
+            ?: throw IOException("Unknown codec ${block[0]}!")
+    return unpackBlock(MessagePack.newDefaultUnpacker(codec.decompress(block.copyOfRange(1, block.size))), trusted)
+}
+
+/**
+ * Unpacks a block packed by [packBlock], or returns null if its type can't be found.
+ *
+ * @param trusted Whether the block was written locally (i.e. a snapshot file or write-ahead log), only then may its
+ * type be loaded by name rather than be one of the types which already have a store.
+ */
+internal fun PersistenceManager.unpackBlock(unpacker: MessageUnpacker, trusted: Boolean = true): Block? {
+    val name = unpacker.unpackString()
+    val names = (1..unpacker.unpackArrayHeader()).map { unpacker.unpackString() }
+    val type = snapshotType(name, names, trusted)
+    val count = unpacker.unpackInt()
+    if (type == null) {
+        logger.warn("Skipping a block of unknown type {}", name)
+        for (i in 1..count) unpacker.skipValue()
+        return null
+    }
+
+    val decoder = decoderFor(type)
+    val positional = decoder.positional(names)
+    val objects = ArrayList<Any>(count)
+    val keys = ArrayList<Long?>(count)
+    val stamps = ArrayList<List<*>?>(count)
+    for (i in 1..count) {
+        val length = unpacker.unpackArrayHeader()
+        keys += (unpacker.unpackAny(this) as Number?)?.toLong()
+        stamps += unpacker.unpackAny(this) as List<*>?
+        objects += decoder.decode(unpacker, this, positional, length - 2)
+    }
+    return Block(type, objects, keys, stamps)
+}
+
+/**
+ * Resolves the type of a block by its name, or by its properties if the type has a different name locally.
+ */
+private fun PersistenceManager.snapshotType(name: String, names: List<String>, trusted: Boolean): Class<*>? {
+    return (if (trusted) localType(name) else stores.keys.firstOrNull { it.name == name })
+            ?: stores.keys.firstOrNull { type -> matchProperties(type).map { it.name }.toSet() == names.toSet() }
+}
+
+/**
+ * Resolves a type named by a local file, preferring the types which have a store. Other types are loaded without
+ * being initialized.
+ */
+internal fun PersistenceManager.localType(name: String): Class<*>? {
+    return stores.keys.firstOrNull { it.name == name } ?: try {
+        Class.forName(name, false, PersistenceManager::class.java.classLoader)
+    } catch (e: ClassNotFoundException) {
+        null
+    }
+}
+
+/**
+ * Quietly inserts the objects of a block, along with their keys and stamps. The local objects they replace (by key or
+ * by hash) are removed first.
+ *
+ * @param newerOnly Whether local objects which were written after (see [Replica.newest]) the block's objects are kept
+ * instead, i.e. when seeding from a peer's snapshot while taking live writes.
+ */
+internal fun PersistenceManager.insertBlock(block: Block, newerOnly: Boolean = false) {
+    val store = storeFor(block.type) as Store<Any>
+    val populated = store.size() > 0
+    val inserted = block.objects.indices.filter { i ->
+        val existing = replicas[block.keys[i]] ?: (if (populated) store.get(generateHash(block.objects[i])) else null)
+                ?: return@filter true
+        val local = if (newerOnly) replicas.find(existing)?.newest() else null
+        val seeded = newestOf(block.stamps[i])
+        if (local != null && (seeded == null || local >= seeded)) return@filter false
+        store.removeHashQuietly(generateHash(existing)) //Forgets its replica
+        true
+    }
+
+    store.insertAllQuietly(if (inserted.size == block.objects.size) block.objects else inserted.map { block.objects[it] })
+    for (i in inserted) {
+        val key = block.keys[i] ?: continue //Never changed
+        replicas.of(block.objects[i], key).restore(block.stamps[i] ?: emptyList<Any>())
+    }
+}
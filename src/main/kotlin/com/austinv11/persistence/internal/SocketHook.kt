@@ -3,106 +3,249 @@ package com.austinv11.persistence.internal
 import com.austinv11.persistence.ConnectionSpy
 import com.austinv11.persistence.Store
 import com.austinv11.persistence.impl.ConnectionImpl
-import com.austinv11.persistence.internal.TwoWaySocket.Hook
+import com.austinv11.persistence.impl.NetworkStore
+import com.austinv11.persistence.internal.Transport.Hook
+import com.austinv11.persistence.logger
 import com.austinv11.persistence.matchProperties
 import kotlinx.coroutines.experimental.runBlocking
+import java.util.concurrent.TimeUnit
 
-internal class SocketHook(override val socket: TwoWaySocket,
+internal class SocketHook(override val transport: Transport,
                           val spy: ConnectionSpy) : Hook {
     
-    private lateinit var manager: TwoWaySocket.CommunicationManager
+    private lateinit var manager: Transport.Link
     private val connection: ConnectionImpl by lazy { 
         manager.connection
     }
     
-    override fun hook(manager: TwoWaySocket.CommunicationManager) {
+    override fun hook(manager: Transport.Link) {
         this.manager = manager
     }
 
     override fun requestConnection(payload: Payload.Identify): Payload.Ok? {
-        val value = spy.interceptConnectionRequest(payload.v, payload.t, payload.d)
-        if (!value.didFail())
-            return Payload.Ok(socket.context.version, d = value.value()) //TODO send INITIALIZE
+        val value = spy.interceptConnectionRequest(payload.v, payload.t, payload.d.withoutExtensions())
+        if (!value.didFail()) {
+            if (payload.d?.containsKey(EXTENSIONS_KEY) != true) //Legacy node, don't confuse it with extensions
+                return Payload.Ok(transport.context.version, d = value.value()) //TODO send INITIALIZE
+            
+            val agreed = SUPPORTED_EXTENSIONS.filter { it in payload.d.advertised() }
+            manager.extensions = agreed.toSet()
+            val parameters = mutableListOf<Pair<String, Any?>>()
+            
+            if (EXT_CODECS in agreed) {
+                val offered = (payload.d[CODECS_KEY] as? List<*>)?.map { (it as Number).toByte() } ?: emptyList()
+                manager.negotiatedCodec = transport.context.codecs.firstOrNull { it.key in offered }
+                parameters += CODECS_KEY to listOfNotNull(manager.negotiatedCodec?.key)
+            }
+            if (EXT_STAGES in agreed) {
+                val offered = (payload.d[STAGES_KEY] as? List<*>)?.map { (it as Number).toByte() } ?: emptyList()
+                manager.negotiatedStages = transport.context.stages.filter { it.key in offered }
+                parameters += STAGES_KEY to manager.negotiatedStages.map { it.key }
+            }
+            return Payload.Ok(transport.context.version, d = value.value().advertise(agreed, *parameters.toTypedArray()))
+        }
         
         return null
     }
 
     override fun verify(payload: Payload.Ok): Boolean {
-        return spy.interceptCompletedHandshake(payload.v, payload.t, payload.d)
+        manager.extensions = payload.d.advertised().filter { it in SUPPORTED_EXTENSIONS }.toSet()
+        if (EXT_CODECS in manager.extensions) {
+            val selected = (payload.d!![CODECS_KEY] as? List<*>)?.firstOrNull()?.let { (it as Number).toByte() }
+            manager.negotiatedCodec = transport.context.codecs.firstOrNull { it.key == selected }
+        }
+        if (EXT_STAGES in manager.extensions) {
+            val selected = (payload.d!![STAGES_KEY] as? List<*>)?.map { (it as Number).toByte() } ?: emptyList()
+            manager.negotiatedStages = selected.map { key -> transport.context.stages.first { it.key == key } }
+        }
+        return spy.interceptCompletedHandshake(payload.v, payload.t, payload.d.withoutExtensions())
     }
 
     override fun rejected() {
         spy.disconnected()
     }
 
-    override fun pinged(payload: Payload.Ping) {
-        val time = System.currentTimeMillis()
-        val latency = time - payload.t
-        spy.latencyCheck(latency)
-        connection.lastPingTime = time
-        connection.lastPing = latency
-    }
+    override fun pinged(payload: Payload.Ping) {}
 
     override fun ponged(payload: Payload.Pong) {
-        val time = System.currentTimeMillis()
-        val latency = time - payload.t
+        val latency = TimeUnit.NANOSECONDS.toMillis(manager.heartbeats.ponged(payload))
         spy.latencyCheck(latency)
-        connection.lastPingTime = time
         connection.lastPing = latency
     }
 
     override fun kicked(payload: Payload.Kick) {
         spy.disconnected()
-        socket.context.invalidate()
+        transport.context.invalidate()
     }
 
     override fun initialize(payload: Payload.Initialize): Boolean {
-        val data = (payload.d as InitializeValueWrapper).p
-        val mapped = data.filterNotNull()
-                .map { it as Map<String, Any?> }
-                .map { it to socket.context.findType(it) }
-                .map { socket.context.mapValues(it.first, it.second) }
+        val context = transport.context
+        val wrapper = payload.d as InitializeValueWrapper
+        val data = wrapper.p.map { it as Map<String, Any?>? }
         
-        val first = mapped.first()
-        if (socket.context.storeFor(first.javaClass).containsHash(socket.context.generateHash(first)))
-            return false //All this was for nothing :(
+        val first = data.indexOfFirst { it != null }
+        if (first >= 0) {
+            val type = context.findType(data[first]!!)
+            val hash = wrapper.h?.get(first) ?: context.generateHash(context.mapValues(data[first]!!, type))
+            if (context.storeFor(type).containsHash(hash))
+                return false //All this was for nothing :(
+        }
+        
+        val deferrable = context.lazyMaterialization && wrapper.h != null 
+                && data.all { it == null || (it is ObjectData && it.encoded != null) }
+        val mapped = if (deferrable) null else data.parallelMap { it?.let { context.mapValues(it, context.findType(it)) } }
 
         if (payload.d.r)
             runBlocking {
-                manager.send(Payload.Initialize(d = InitializeValueWrapper(socket.context.stores.values.flatMap { it.collect() }.toTypedArray(), false)))
+                manager.sendState(false)
+            }
+        
+        if (mapped == null) { //Decoded when they are first accessed
+            data.forEachIndexed { i, it ->
+                val objectData = it as? ObjectData ?: return@forEachIndexed
+                (context.storeFor(objectData.type!!) as NetworkStore).defer(wrapper.h!![i]!!,
+                        Deferred(objectData.encoded!!, wrapper.k?.get(i), wrapper.s?.get(i)))
             }
+            return true
+        }
         
-        mapped.forEach { socket.context.persistQuietly(it) }
+        mapped.filterNotNull().groupBy { it.javaClass }.forEach { type, objects ->
+            context.storeFor(type).insertAllQuietly(objects)
+        }
+        mapped.forEachIndexed { i, obj ->
+            if (obj == null) return@forEachIndexed
+            val key = wrapper.k?.get(i) ?: return@forEachIndexed //Never changed
+            transport.context.replicas.of(obj, key).restore(wrapper.s?.get(i) ?: emptyList<Any>())
+        }
         return true
     }
 
     override fun created(payload: Payload.Creation): Boolean {
-        if (!socket.context.stores.filter { it.value.containsHash(payload.h!!) }.isEmpty())
+        val context = transport.context
+        if (!context.stores.filter { it.value.containsHash(payload.h!!) }.isEmpty())
             return false //All this was for nothing :(
 
-        val type = socket.context.findType(payload.d!!)
-        val obj = socket.context.mapValues(payload.d, type)
-        
-        socket.context.persistQuietly(obj)
-        return true
+        val stamp = payload.c?.let { context.clock.observe(it); Stamp(it, payload.id?.origin ?: 0) }
+        val encoded = (payload.d as? ObjectData)?.encoded
+        val type = encoded?.schema?.type ?: context.findType(payload.d!!)
+        val store = context.storeFor(type) as NetworkStore
+        synchronized(store.clearLock) { //A concurrent local clear must not miss it
+            val cleared = store.lastClear
+            if (stamp != null && cleared != null && stamp < cleared) {
+                logger.trace("Discarding the creation of {} which lost to a newer clear", payload.h)
+                return false
+            }
+            
+            if (encoded != null) { //Decoded when it is first accessed
+                store.defer(payload.h!!, Deferred(encoded, stamp?.let { payload.h }, stamp?.let { listOf(CREATED_PATH, it.time, it.node) }))
+                return true
+            }
+            
+            val obj = context.mapValues(payload.d!!, type)
+            stamp?.let { context.replicas.of(obj, payload.h!!).record(CREATED_PATH, it) }
+            context.persistQuietly(obj)
+            return true
+        }
     }
 
     override fun changed(payload: Payload.Change): Boolean {
-        val store: Store<in Any> = socket.context.stores.filter { it.value.containsHash(payload.oh!!) }.entries.firstOrNull()?.value as Store<in Any>? ?: return@changed false //All this was for nothing :(
+        val context = transport.context
+        val obj = context.replicas[payload.k] //Found even if its hash has since changed
+                ?: context.stores.values.firstOrNull { it.containsHash(payload.oh!!) }?.get(payload.oh!!)
+                ?: return false //All this was for nothing :(
+        val store = context.storeFor(obj.javaClass) as Store<in Any>
+        val replica = if (payload.c != null) context.replicas.of(obj, payload.k ?: payload.oh!!) else null
+        val stamp = payload.c?.let { context.clock.observe(it); Stamp(it, payload.id?.origin ?: 0) }
 
-        val obj = store.get(payload.oh!!)
-        val pseudoProperty = payload.d!!.iterator().next() //We can assume a single pair
-        val realProperty = socket.context.matchProperties(obj).find { it.name == pseudoProperty.key }!!
-        
-        realProperty.setter.invokeWithArguments(pseudoProperty.value)
-        store.updateQuietly(payload.oh, obj!!)
+        val data = payload.d!!
+        synchronized(obj) { //Local changes are made under the same lock, see SourceAwareProxy
+            val hash = context.generateHash(obj)
+            val delta = if (data !is ObjectData) data[DELTA_KEY] as? List<*> else null
+            if (delta != null) {
+                val path = delta[0] as String
+                val replaced = replica?.latest(path)
+                if (stamp != null && replaced != null && replaced > stamp) //The collection was replaced since
+                    logger.trace("Discarding a delta to {} which lost to a newer write", path)
+                else if (!context.applyDelta(obj, delta))
+                    logger.debug("Unable to apply a delta to {}, it is null", path)
+                else if (stamp != null)
+                    replica?.record(DELTA_PREFIX + path, stamp)
+            } else if (data is ObjectData && data.properties != null && data.type == obj.javaClass) { //Already matched by a schema
+                for (i in 0..(data.size - 1)) {
+                    data.properties[data.indexAt(i)]?.let { property ->
+                        context.resolve(obj, property.name, context.nested(data.propertyValues[i], property.type), replica, stamp) {
+                            property.setter.invokeWithArguments(obj, it)
+                        }
+                    }
+                }
+            } else {
+                val pseudoProperty = data.iterator().next() //We can assume a single pair
+                if (PATH_SEPARATOR in pseudoProperty.key) { //A nested property
+                    context.resolve(obj, pseudoProperty.key, pseudoProperty.value, replica, stamp) {
+                        if (!context.setPath(obj, pseudoProperty.key, it))
+                            logger.debug("Unable to apply a change to {}, a parent of it is null", pseudoProperty.key)
+                    }
+                } else {
+                    val realProperty = context.matchProperties(obj).find { it.name == pseudoProperty.key }!!
+                    context.resolve(obj, realProperty.name, context.nested(pseudoProperty.value, realProperty.type), replica, stamp) {
+                        realProperty.setter.invokeWithArguments(it)
+                    }
+                }
+            }
+            store.updateQuietly(hash, obj)
+        }
         return true
     }
 
     override fun removed(payload: Payload.Removal): Boolean {
-        val store = socket.context.stores.filter { it.value.containsHash(payload.h!!) }.entries.firstOrNull()?.toPair() ?: return false //All this was for nothing :(
+        val context = transport.context
+        val obj = context.replicas[payload.k]
+        if (obj != null) //Its hash may have changed since
+            return context.storeFor(obj.javaClass).removeHashQuietly(context.generateHash(obj))
+        
+        val store = context.stores.filter { it.value.containsHash(payload.h!!) }.entries.firstOrNull()?.toPair() ?: return false //All this was for nothing :(
         
         store.second.removeHashQuietly(payload.h!!)
         return true
     }
+
+    override fun seeded(payload: Payload.Seed) {
+        val context = transport.context
+        payload.block?.let { context.decodeBlock(it, trusted = false) }?.let { context.insertBlock(it, newerOnly = true) }
+        payload.removed?.let { hashes -> context.stores.values.forEach { it.removeAllQuietly(hashes) } }
+    }
+
+    override fun bulkRemoved(payload: Payload.BulkRemoval): Boolean {
+        val context = transport.context
+        val names = payload.names
+        if (names == null) {
+            val keys = payload.keys
+            val hashes = payload.hashes!!.mapIndexed { i, hash -> //Their hashes may have changed since
+                context.replicas[keys?.get(i)]?.let { context.generateHash(it) } ?: hash 
+            }
+            return context.stores.values.sumBy { it.removeAllQuietly(hashes) } > 0
+        }
+        
+        val type = payload.typeName?.let { name -> context.stores.keys.firstOrNull { it.name == name } }
+                ?: context.stores.keys.filter { type -> context.matchProperties(type).map { it.name }.toSet() == names.toSet() }.singleOrNull()
+                ?: return false //Unlike objects, types must match exactly (and unambiguously) to be cleared
+        val stamp = payload.stamp!!
+        context.clock.observe(stamp.time)
+        val store = context.storeFor(type) as Store<Any>
+        synchronized((store as NetworkStore).clearLock) { //Local creations are either older and removed, or newer and kept
+            store.cleared(stamp)
+            val newer = store.collect().filter { obj -> context.replicas.find(obj)?.newest()?.let { it > stamp } == true }
+            val legacy = transport.connections.any { EXT_BULK !in it.extensions } //Only they need every hash
+            if (newer.isEmpty() && !legacy) {
+                val cleared = !store.isEmpty()
+                store.clearQuietly()
+                return cleared
+            }
+            
+            val kept = newer.mapTo(HashSet()) { context.generateHash(it) } //Changed after the clear
+            val removed = store.collect().map { context.generateHash(it) }.filter { it !in kept }
+            payload.removed = removed
+            return store.removeAllQuietly(removed) > 0
+        }
+    }
 }
@@ -1,13 +1,21 @@
 package com.austinv11.persistence.internal
 
 import com.austinv11.persistence.*
+import com.austinv11.persistence.impl.NetworkStore
 import java.lang.reflect.InvocationHandler
 import java.lang.reflect.Method
+import java.lang.reflect.Proxy
 
-class SourceAwareProxy<T: Any>(val source: T,
+/**
+ * This intercepts the setters of a persisted object. With deep persistence, getters of nested objects return proxies 
+ * too; these report changes to the root object's store with the property's path (i.e. `address.street`).
+ */
+class SourceAwareProxy<T: Any>(val source: Any,
                           val store: Store<T>,
                           val properties: List<Property<*>>,
-                          val manager: PersistenceManager) : InvocationHandler {
+                          val manager: PersistenceManager,
+                          val root: T = source as T,
+                          val path: String = "") : InvocationHandler {
     
     override fun invoke(proxy: Any, method: Method, args: Array<out Any>?): Any? {
         val args = args ?: emptyArray()
@@ -16,7 +24,7 @@ class SourceAwareProxy<T: Any>(val source: T,
         if (method.declaringClass == Persisted::class.java) {
             if (method.name == "unpersist") {
                 logger.debug("Un-persisting object {}!", source)
-                store.remove(source)
+                store.remove(root)
             }
             return null
         }
@@ -26,18 +34,44 @@ class SourceAwareProxy<T: Any>(val source: T,
             val getter = properties.find { it.name == name && it.type == method.returnType }?.getter
             if (getter != null) { //This is a getter! Time for magic
                 logger.trace("Getter called for property {} in {}", name, source)
-                return getter.invokeWithArguments()
+                val value = getter.invokeWithArguments()
+                if (manager.collectionDeltas) {
+                    val tracked = track(value, method.returnType) { Recorder(method.returnType, path + name) }
+                    if (tracked != null) return tracked //Track changes made in place
+                }
+                if (method.returnType.isInterface && manager.isNested(value)) { //Track changes to the nested object
+                    val interfaces = (value!!.javaClass.interfaces + method.returnType).distinct().toTypedArray()
+                    return Proxy.newProxyInstance(value.javaClass.classLoader, interfaces, 
+                            SourceAwareProxy(value, store, manager.matchProperties(value), manager, root, path + name + PATH_SEPARATOR))
+                }
+                return value
             }
         } else if (method.parameterCount == 1 && !method.isVarArgs) {
             val setterProperty = properties.find { it.name == name && it.type == method.parameterTypes[0] }
             if (setterProperty != null) { //This is a setter! Time for magic
                 logger.trace("Setter called for property {} in {}", name, source)
-                val originalHash = manager.generateHash(source)
-                val returnVal = setterProperty.setter.invokeWithArguments(args[0])
-                store.update(originalHash, source, setterProperty.type to name)
-                return returnVal
+                synchronized(root) { //Received changes are applied under the same lock
+                    val originalHash = manager.generateHash(root)
+                    val returnVal = setterProperty.setter.invokeWithArguments(args[0]?.unwrapObject())
+                    store.update(originalHash, root, setterProperty.type to path + name)
+                    return returnVal
+                }
             }
         }
         return method.invoke(source, *args)
     }
+
+    private inner class Recorder(val type: Class<*>, val path: String) : DeltaRecorder {
+
+        override fun <R> record(op: DeltaOp, args: List<Any?>, mutation: () -> R): R = synchronized(root) {
+            val originalHash = manager.generateHash(root)
+            val result = mutation()
+            val store = store
+            if (store is NetworkStore<T>)
+                store.update(originalHash, root, CollectionDelta(path, op, args.map { manager.mapNested(it) }) { manager.changeOf(root, path) })
+            else
+                store.update(originalHash, root, type to path)
+            return result
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.FrameStage
+import com.austinv11.persistence.StageContext
+import java.nio.ByteBuffer
+
+/**
+ * This runs frames through the [FrameStage]s negotiated for one direction of a connection. Stages are switched on when
+ * the sender writes an empty frame, so the receiver knows exactly which frames went through them.
+ *
+ * Stages write to two pooled scratch buffers which are used alternately (so a stage's output never overlaps its
+ * input). Scratch buffers reserve room for the frame header in front of them, so a frame which ends up in one can be
+ * written with a single write.
+ *
+ * This is not thread safe, outbound pipelines are used while holding the connection's write lock and inbound pipelines
+ * are only used by the connection's read loop.
+ */
+internal class StagePipeline(val connection: TwoWaySocket.CommunicationManager, val outbound: Boolean) {
+
+    private var contexts: List<Context> = emptyList()
+    private val scratch = arrayOf(ByteArray(INITIAL_FRAME_BUFFER), ByteArray(INITIAL_FRAME_BUFFER))
+    private var input: ByteArray? = null
+
+    var stages: List<FrameStage>
+        get() = contexts.map { it.stage }
+        set(value) {
+            contexts = value.map { Context(it) }
+        }
+
+    val isEmpty: Boolean
+        get() = contexts.isEmpty()
+
+    fun apply(frame: ByteBuffer): ByteBuffer {
+        var current = frame
+        val contexts = if (outbound) contexts else contexts.asReversed()
+        for (context in contexts) {
+            input = if (current.hasArray()) current.array() else null
+            current = if (outbound) context.stage.pack(context, current) else context.stage.consume(context, current)
+        }
+        input = null
+        return current
+    }
+
+    /**
+     * Checks whether the provided array is one of this pipeline's scratch buffers.
+     */
+    fun owns(array: ByteArray): Boolean = array === scratch[0] || array === scratch[1]
+
+    /**
+     * Drops scratch buffers grown by unusually large frames so they aren't retained forever.
+     */
+    fun release() {
+        for (i in scratch.indices) {
+            if (scratch[i].size > MAX_RETAINED_FRAME_BUFFER)
+                scratch[i] = ByteArray(INITIAL_FRAME_BUFFER)
+        }
+    }
+
+    private fun allocate(capacity: Int): ByteBuffer {
+        val index = if (scratch[0] === input) 1 else 0
+        if (scratch[index].size < FRAME_HEADER_LENGTH + capacity)
+            scratch[index] = ByteArray(Math.max(FRAME_HEADER_LENGTH + capacity, scratch[index].size * 2))
+        return ByteBuffer.wrap(scratch[index], FRAME_HEADER_LENGTH, capacity).slice()
+    }
+
+    private inner class Context(val stage: FrameStage) : StageContext {
+
+        private var state: Any? = null
+
+        override fun getHost(): String = connection.host
+
+        override fun getPort(): Int = connection.port
+
+        override fun allocate(capacity: Int): ByteBuffer = this@StagePipeline.allocate(capacity)
+
+        override fun getState(): Any? = state
+
+        override fun setState(state: Any?) {
+            this.state = state
+        }
+    }
+}
+
+/**
+ * Copies the remaining bytes of the buffer (without moving its position).
+ */
+internal fun ByteBuffer.remainingBytes(): ByteArray {
+    if (hasArray() && arrayOffset() == 0 && position() == 0 && remaining() == array().size)
+        return array()
+
+    val bytes = ByteArray(remaining())
+    duplicate().get(bytes)
+    return bytes
+}
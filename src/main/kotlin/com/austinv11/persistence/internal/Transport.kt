@@ -0,0 +1,240 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.*
+import com.austinv11.persistence.impl.ConnectionImpl
+import com.austinv11.persistence.impl.NoOpConnectionSpy
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * This moves payloads between this node and its peers. Dissemination (see [Plumtree]), heartbeats and the handling of
+ * received payloads are shared, implementations only need to establish [Link]s and carry payloads over them.
+ *
+ * @see TwoWaySocket
+ * @see InProcessTransport
+ */
+abstract class Transport(internal val context: PersistenceManager,
+                         internal val allowedConnections: Int,
+                         internal val spy: ConnectionSpy = NoOpConnectionSpy()) : AutoCloseable {
+
+    internal val connections = CopyOnWriteArrayList<Link>()
+    @Volatile internal var closed = false
+    internal val plumtree: Plumtree
+    internal val heartbeat: Heartbeat
+
+    init {
+        if (allowedConnections < 1) throw IllegalArgumentException("Need a least one allowed connection!")
+
+        plumtree = Plumtree(this)
+        heartbeat = Heartbeat(this)
+    }
+
+    /**
+     * Connects to the node listening on the provided address.
+     */
+    abstract suspend fun connectTo(host: String, port: Int, metadata: Map<String, Any?>? = null)
+
+    /**
+     * Disseminates a payload to the network, excluding the (optional) provided connection.
+     */
+    suspend fun broadcast(payload: Payload, except: Link? = null) {
+        plumtree.broadcast(payload, except)
+    }
+
+    /**
+     * Closes every link and stops accepting new ones, the background loops (see [Plumtree]) end along with it.
+     */
+    override fun close() {
+        closed = true
+        connections.forEach { it.close() }
+    }
+
+    /**
+     * Called once a link was closed.
+     */
+    internal open fun disconnected(link: Link) {
+        connections.remove(link)
+    }
+
+    /**
+     * This is a connection to a single peer.
+     */
+    abstract class Link(val transport: Transport,
+                        val hook: Hook,
+                        val host: String,
+                        val port: Int,
+                        val manager: PersistenceManager = transport.context) : AutoCloseable {
+
+        val connection = ConnectionImpl(this)
+        @Volatile var extensions: Set<String> = emptySet()
+        @Volatile var eager = true
+        @Volatile var codec: Codec? = null
+        @Volatile var negotiatedCodec: Codec? = null
+        internal val schemaTable = SchemaTable()
+        internal val schemas: SchemaTable?
+            get() = if (EXT_SCHEMAS in extensions) schemaTable else null
+        @Volatile var negotiatedStages: List<FrameStage> = emptyList()
+        @Volatile var established = false
+        internal val detector = FailureDetector { manager.heartbeatInterval }
+        internal val heartbeats = Heartbeats(this)
+
+        init {
+            hook.hook(this)
+        }
+
+        abstract suspend fun send(payload: Payload)
+
+        /**
+         * Sends a replicated payload, payloads of extension opcodes the peer didn't negotiate are sent in the form of
+         * their PPPP v2 equivalent instead.
+         */
+        suspend fun sendCompatible(payload: Payload) {
+            if (payload is Payload.BulkRemoval && EXT_BULK !in extensions)
+                payload.split().forEach { send(it) }
+            else
+                send(payload)
+        }
+
+        /**
+         * Switches to whatever was negotiated during the handshake (i.e. codecs and stages).
+         */
+        protected abstract fun activateNegotiated()
+
+        /**
+         * Sends the contents of every store, as one INITIALIZE payload per store so each can use its type's lane (or by
+         * seeding the peer, see [PersistenceManager.setSeeding]).
+         */
+        suspend fun sendState(respond: Boolean) {
+            val baseline = manager.baseline
+            if (baseline != null && EXT_SEED in extensions && manager.seed(this, baseline)) {
+                send(Payload.Initialize(d = InitializeValueWrapper(emptyArray(), respond), id = manager.nextMessageId()))
+                return
+            }
+            
+            val contents = manager.stores.values.map { it.snapshot() }.filter { it.isNotEmpty() }
+            if (contents.isEmpty())
+                send(Payload.Initialize(d = InitializeValueWrapper(emptyArray(), respond), id = manager.nextMessageId()))
+
+            contents.forEachIndexed { i, objects ->
+                send(Payload.Initialize(d = manager.initializeWrapper(objects, respond && i == 0), id = manager.nextMessageId()))
+            }
+        }
+
+        fun firstSighting(id: MessageId): Boolean {
+            val first = id.origin != manager.nodeId && manager.seen.firstSighting(id)
+            if (first)
+                transport.plumtree.received(id)
+            else
+                transport.plumtree.duplicate(this)
+            return first
+        }
+
+        suspend fun receive(payload: Payload) {
+            when (ops[payload.op]) {
+                OpCode.IDENTIFY -> {
+                    val response = hook.requestConnection(payload as Payload.Identify)
+                    send(response ?: Payload.Rejection())
+                    activateNegotiated() //Only switch once the OK payload was sent in a format the peer can still read
+                    established = response != null
+                }
+                OpCode.OK -> {
+                    if (!hook.verify(payload as Payload.Ok)) {
+                        send(Payload.Rejection())
+                        return
+                    }
+                    activateNegotiated()
+                    established = true
+                    sendState(true)
+                }
+                OpCode.REJECTION -> {
+                    hook.rejected()
+                    close()
+                }
+                OpCode.PING -> {
+                    hook.pinged(payload as Payload.Ping)
+                    send(Payload.Pong(payload.echo))
+                }
+                OpCode.PONG -> {
+                    hook.ponged(payload as Payload.Pong)
+                }
+                OpCode.KICK -> {
+                    hook.kicked(payload as Payload.Kick)
+                    close()
+                }
+                //Payloads with ids are always forwarded since duplicates were already dropped by the seen filter
+                OpCode.INITIALIZE -> {
+                    if (manager.timed(Metrics.Timing.APPLY) { hook.initialize(payload as Payload.Initialize) } || payload.id != null)
+                        transport.broadcast(payload, this)
+                }
+                OpCode.CREATION -> {
+                    if (manager.timed(Metrics.Timing.APPLY) { hook.created(payload as Payload.Creation) } || payload.id != null)
+                        transport.broadcast(payload, this)
+                }
+                OpCode.CHANGE -> {
+                    if (manager.timed(Metrics.Timing.APPLY) { hook.changed(payload as Payload.Change) } || payload.id != null)
+                        transport.broadcast(payload, this)
+                }
+                OpCode.REMOVAL -> {
+                    if (manager.timed(Metrics.Timing.APPLY) { hook.removed(payload as Payload.Removal) } || payload.id != null)
+                        transport.broadcast(payload, this)
+                }
+                OpCode.BULK_REMOVAL -> {
+                    if (manager.timed(Metrics.Timing.APPLY) { hook.bulkRemoved(payload as Payload.BulkRemoval) } || payload.id != null)
+                        transport.broadcast(payload, this)
+                }
+                OpCode.SEED -> {
+                    manager.timed(Metrics.Timing.APPLY) { hook.seeded(payload as Payload.Seed) }
+                }
+                OpCode.IHAVE -> {
+                    transport.plumtree.announced(this, (payload as Payload.IHave).ids)
+                }
+                OpCode.GRAFT -> {
+                    transport.plumtree.grafted(this, (payload as Payload.Graft).graftId)
+                }
+                OpCode.PRUNE -> {
+                    transport.plumtree.pruned(this)
+                }
+                OpCode.SCHEMA -> {
+                    schemaTable.define(manager, payload as Payload.Schema)
+                }
+            }
+        }
+
+        override fun close() {
+            manager.processor.disconnected(host, port)
+            heartbeats.closed()
+            manager.metrics.closed(connection)
+            transport.disconnected(this)
+        }
+    }
+
+    interface Hook {
+
+        val transport: Transport
+
+        fun hook(manager: Link)
+
+        fun requestConnection(payload: Payload.Identify): Payload.Ok?
+
+        fun verify(payload: Payload.Ok): Boolean
+
+        fun rejected()
+
+        fun pinged(payload: Payload.Ping)
+
+        fun ponged(payload: Payload.Pong)
+
+        fun kicked(payload: Payload.Kick)
+
+        fun initialize(payload: Payload.Initialize): Boolean
+
+        fun created(payload: Payload.Creation): Boolean
+
+        fun changed(payload: Payload.Change): Boolean
+
+        fun removed(payload: Payload.Removal): Boolean
+
+        fun bulkRemoved(payload: Payload.BulkRemoval): Boolean
+
+        fun seeded(payload: Payload.Seed)
+    }
+}
@@ -1,64 +1,79 @@
 package com.austinv11.persistence.internal
 
 import com.austinv11.persistence.*
-import com.austinv11.persistence.impl.ConnectionImpl
 import com.austinv11.persistence.impl.NoOpConnectionSpy
-import kotlinx.coroutines.experimental.CommonPool
+import com.austinv11.persistence.impl.NoOpPreProcessor
 import kotlinx.coroutines.experimental.launch
-import kotlinx.coroutines.experimental.newSingleThreadContext
+import kotlinx.coroutines.experimental.run
 import kotlinx.coroutines.experimental.yield
+import java.io.DataInputStream
 import java.net.ServerSocket
 import java.net.Socket
-import java.util.concurrent.CopyOnWriteArrayList
+import java.net.SocketException
+import java.nio.ByteBuffer
 
-class TwoWaySocket {
+/**
+ * This carries payloads over TCP, framed and encoded as described by the PPPP spec.
+ */
+class TwoWaySocket(context: PersistenceManager, 
+                   port: Int, 
+                   allowedConnections: Int, 
+                   spy: ConnectionSpy = NoOpConnectionSpy()) : Transport(context, allowedConnections, spy) {
     
-    internal val server: ServerSocket
-    internal val connections = CopyOnWriteArrayList<CommunicationManager>()
-    internal val context: PersistenceManager
-    internal val allowedConnections: Int
-    internal val spy: ConnectionSpy
+    internal val server = ServerSocket(port)
 
-    constructor(context: PersistenceManager, port: Int, allowedConnections: Int, spy: ConnectionSpy = NoOpConnectionSpy()) {
-        if (allowedConnections < 1) throw IllegalArgumentException("Need a least one allowed connection!")
-        
-        this.context = context
-        this.allowedConnections = allowedConnections
-        this.spy = spy
-        server = ServerSocket(port)
+    init {
         waitForConnection()
     }
     
     fun waitForConnection() {
-        launch(newSingleThreadContext("Connection Waiter")) { 
-            while(connections.size < allowedConnections) {
-                val socket = server.accept()
+        launch(context.io) { 
+            while(!closed && connections.size < allowedConnections) {
+                val socket = try {
+                    server.accept()
+                } catch (e: SocketException) {
+                    if (closed) return@launch else throw e
+                }
                 connections += CommunicationManager(socket, SocketHook(this@TwoWaySocket, spy), socket.inetAddress.hostName, socket.port)
             }
             yield()
         }
     }
 
-    suspend fun connectTo(host: String, port: Int, metadata: Map<String, Any?>? = null) {
+    override suspend fun connectTo(host: String, port: Int, metadata: Map<String, Any?>?) {
         val socket = Socket(host, port)
         val manager = CommunicationManager(socket, SocketHook(this, spy), host, port)
-        manager.send(Payload.Identify(context.version, d = metadata))
+        manager.send(Payload.Identify(context.version, d = metadata.advertise(SUPPORTED_EXTENSIONS, CODECS_KEY to context.codecs.map { it.key }, STAGES_KEY to context.stages.map { it.key })))
         connections += manager
     }
+
+    override fun disconnected(link: Link) {
+        val oldSize = connections.size
+        super.disconnected(link)
+        if (oldSize == allowedConnections && !closed) //Wait loop was previously terminated so we must restart it
+            waitForConnection()
+    }
+
+    override fun close() {
+        closed = true
+        server.close()
+        super.close()
+    }
     
     inner class CommunicationManager(val socket: Socket, 
-                                     val hook: Hook,
-                                     val host: String,
-                                     val port: Int,
-                                     val manager: PersistenceManager = context) : AutoCloseable {
+                                     hook: Hook,
+                                     host: String,
+                                     port: Int) : Link(this@TwoWaySocket, hook, host, port) {
 
-        val input = socket.getInputStream()!!
+        val input = DataInputStream(socket.getInputStream()!!)
         val output = socket.getOutputStream()!!
-        val connection = ConnectionImpl(this)
+        private val writer = FrameWriter(this)
+        private val inboundStages = StagePipeline(this, false)
+        private var readBuffer = ByteArray(INITIAL_FRAME_BUFFER)
+        private var lanes: LaneReassembler? = null
         
         init {
-            hook.hook(this)
-            launch(CommonPool) {
+            launch(manager.io) {
                 while (!socket.isClosed) {
                     try {
                         val typeHeader = input.read()
@@ -66,17 +81,47 @@ class TwoWaySocket {
                             throw Exception("PreProcessor mismatch! Expected ${manager.processor.key.toInt()} but received $typeHeader")
                         
                         val lenHeader = ByteArray(4)
-                        input.read(lenHeader)
+                        input.readFully(lenHeader)
+                        detector.heard(System.nanoTime())
                         var len = 0
                         for (i in 0..(lenHeader.size - 1)) {
                             len = len shl 8
                             len = len xor (lenHeader[i].toInt() and mask_int)
                         }
-                        val data = ByteArray(len)
-                        input.read(data)
-                        val processed = manager.processor.consume(host, port, data)
-                        receive(manager.unpack(decompress(processed)))
+                        if (len == 0) { //The peer switched on the negotiated stages and lanes
+                            inboundStages.stages = negotiatedStages
+                            lanes = if (EXT_LANES in extensions) LaneReassembler() else null
+                            continue
+                        }
+                        
+                        if (readBuffer.size < len) readBuffer = ByteArray(len)
+                        input.readFully(readBuffer, 0, len)
+                        var frame = ByteBuffer.wrap(readBuffer, 0, len)
+                        if (manager.processor !is NoOpPreProcessor || !inboundStages.isEmpty) {
+                            frame = manager.timed(Metrics.Timing.DECRYPT) {
+                                val consumed = if (manager.processor !is NoOpPreProcessor) ByteBuffer.wrap(manager.processor.consume(host, port, frame.remainingBytes())) else frame
+                                inboundStages.apply(consumed)
+                            }
+                        }
+                        val reassembler = lanes
+                        if (reassembler != null)
+                            frame = reassembler.accept(frame) ?: continue //Wait for the rest of the frame
+                        val size = frame.remaining()
+                        val decoded = manager.timed(Metrics.Timing.DECOMPRESS) { manager.decodeFrame(frame) }
+                        val payload = manager.timed(Metrics.Timing.DECODE) { manager.unpack(decoded, this@CommunicationManager::firstSighting, schemas) }
+                        manager.metrics.received(connection, payload?.let { ops[it.op] }, size)
+                        if (readBuffer.size > MAX_RETAINED_FRAME_BUFFER) readBuffer = ByteArray(INITIAL_FRAME_BUFFER)
+                        inboundStages.release()
+                        if (payload == null) continue
+                        val apply = manager.apply
+                        detector.applying()
+                        try {
+                            if (apply == null) receive(payload) else run(apply) { receive(payload) }
+                        } finally {
+                            detector.applied(System.nanoTime())
+                        }
                     } catch (e: Exception) {
+                        if (socket.isClosed) break //Closed locally
                         logger.error("Exception caught processing data, cleanly closing connection to $host:$port...", e)
                         use {
                             send(Payload.Kick())
@@ -86,109 +131,33 @@ class TwoWaySocket {
             }
         }
         
-        suspend fun send(payload: Payload) {
+        override suspend fun send(payload: Payload) {
             try {
-                val dataArray = manager.processor.pack(host, port, compress(manager.pack(payload)))
-                var len = dataArray.size
-                val len1 = len and mask_int
-                len = len shr 8
-                val len2 = len and mask_int
-                len = len shr 8
-                val len3 = len and mask_int
-                len = len shr 8
-                val len4 = len and mask_int
-                output.write(manager.processor.key.toInt())
-                output.write(byteArrayOf(len4.toByte(), len3.toByte(), len2.toByte(), len1.toByte()))
-                output.write(dataArray)
+                writer.send(payload, output)
                 output.flush()
             } catch (e: Exception) {
+                if (socket.isClosed) return //Closed while sending
                 logger.error("Exception caught sending data, harshly closing connection to $host:$port...", e)
                 close()
             }
         }
         
-        suspend fun receive(payload: Payload) {
-            when (ops[payload.op]) {
-                OpCode.IDENTIFY -> {
-                    send(hook.requestConnection(payload as Payload.Identify) ?: Payload.Rejection())
-                }
-                OpCode.OK -> {
-                    if (!hook.verify(payload as Payload.Ok))
-                        send(Payload.Rejection())
-                    else
-                        send(Payload.Initialize(d = InitializeValueWrapper(manager.stores.values.flatMap { it.collect() }.toTypedArray(), true)))
-                }
-                OpCode.REJECTION -> {
-                    hook.rejected()
-                    close()
-                }
-                OpCode.PING -> {
-                    hook.pinged(payload as Payload.Ping)
-                    send(Payload.Pong())
-                }
-                OpCode.PONG -> {
-                    hook.ponged(payload as Payload.Pong)
-                }
-                OpCode.KICK -> {
-                    hook.kicked(payload as Payload.Kick)
-                    close()
-                }
-                OpCode.INITIALIZE -> {
-                    if (hook.initialize(payload as Payload.Initialize)) {
-                        connections.filterNot { it == this }.forEach { it.send(payload) }
-                    }
-                }
-                OpCode.CREATION -> {
-                    if (hook.created(payload as Payload.Creation))
-                        connections.filterNot { it == this }.forEach { it.send(payload) }
-                }
-                OpCode.CHANGE -> {
-                    if (hook.changed(payload as Payload.Change))
-                        connections.filterNot { it == this }.forEach { it.send(payload) }
-                }
-                OpCode.REMOVAL -> {
-                    if (hook.removed(payload as Payload.Removal))
-                        connections.filterNot { it == this }.forEach { it.send(payload) }
-                }
+        override fun activateNegotiated() {
+            try {
+                codec = negotiatedCodec
+                writer.activate(negotiatedStages, EXT_LANES in extensions, output)
+                output.flush()
+            } catch (e: Exception) {
+                logger.error("Exception caught sending data, harshly closing connection to $host:$port...", e)
+                close()
             }
         }
-
+        
         override fun close() {
             input.close()
             output.close()
             socket.close()
-            
-            val oldSize = connections.size
-            connections.remove(this)
-            if (oldSize == allowedConnections) //Wait loop was previously terminated so we must restart it
-                waitForConnection()
+            super.close()
         }
     }
-    
-    interface Hook {
-        
-        val socket: TwoWaySocket
-        
-        fun hook(manager: CommunicationManager)
-        
-        fun requestConnection(payload: Payload.Identify): Payload.Ok?
-        
-        fun verify(payload: Payload.Ok): Boolean
-        
-        fun rejected()
-        
-        fun pinged(payload: Payload.Ping)
-
-        fun ponged(payload: Payload.Pong)
-        
-        fun kicked(payload: Payload.Kick)
-        
-        fun initialize(payload: Payload.Initialize): Boolean
-        
-        fun created(payload: Payload.Creation): Boolean
-        
-        fun changed(payload: Payload.Change): Boolean
-        
-        fun removed(payload: Payload.Removal): Boolean
-    }
 }
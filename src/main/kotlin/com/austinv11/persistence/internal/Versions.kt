@@ -0,0 +1,202 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.logger
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The number of low bits of a [HybridClock] timestamp which hold the logical counter, the rest hold the physical time
+ * in milliseconds.
+ */
+internal const val LOGICAL_BITS = 16
+
+/**
+ * This is a hybrid logical clock, its timestamps are close to the physical time (see [LOGICAL_BITS]) but they never go
+ * backwards and are always ahead of every timestamp which was observed from other nodes.
+ */
+internal class HybridClock(private val physical: () -> Long = System::currentTimeMillis) {
+
+    private val last = AtomicLong()
+
+    /**
+     * Gets a timestamp for a local write.
+     */
+    fun now(): Long {
+        while (true) {
+            val previous = last.get()
+            val next = Math.max(previous + 1, physical() shl LOGICAL_BITS)
+            if (last.compareAndSet(previous, next)) return next
+        }
+    }
+
+    /**
+     * Moves the clock past a timestamp received from another node.
+     */
+    fun observe(remote: Long) {
+        while (true) {
+            val previous = last.get()
+            val next = Math.max(Math.max(previous, remote) + 1, physical() shl LOGICAL_BITS)
+            if (last.compareAndSet(previous, next)) return
+        }
+    }
+}
+
+/**
+ * The path the creation of an object is stamped under, it is no property's path so it only counts towards
+ * [Replica.newest] (i.e. when clearing a type).
+ */
+internal const val CREATED_PATH = ""
+
+/**
+ * Collection deltas are stamped under their collection's path with this prefix, apart from replacements of the whole
+ * collection. So deltas are only discarded if the collection was replaced since, never because of a newer delta.
+ */
+internal const val DELTA_PREFIX = "+"
+
+/**
+ * The version of a write, ties between equal timestamps (from different nodes) are broken by the writer's node id.
+ */
+internal data class Stamp(val time: Long, val node: Long) : Comparable<Stamp> {
+
+    override fun compareTo(other: Stamp): Int {
+        val order = time.compareTo(other.time)
+        return if (order != 0) order else node.compareTo(other.node)
+    }
+}
+
+/**
+ * This tracks the replication state of an object: the key it is known by across the network (its hash when it was
+ * first changed, so it survives changes to its hash) and the stamp of the last write to each property path.
+ */
+internal class Replica(val key: Long) {
+
+    private var stamps: MutableMap<String, Stamp>? = null //Most objects are never changed
+
+    /**
+     * Gets the stamp of the last write to a property path, writes to parent paths count as writes to their children.
+     */
+    @Synchronized fun latest(path: String): Stamp? {
+        val stamps = stamps ?: return null
+        var latest = stamps[path]
+        var end = path.indexOf(PATH_SEPARATOR)
+        while (end >= 0) {
+            val stamp = stamps[path.substring(0, end)]
+            if (stamp != null && (latest == null || stamp > latest)) latest = stamp
+            end = path.indexOf(PATH_SEPARATOR, end + 1)
+        }
+        return latest
+    }
+
+    /**
+     * Records a write to a property path if it is newer than the last one.
+     *
+     * @return False if the write lost (so it must not be applied).
+     */
+    @Synchronized fun accept(path: String, stamp: Stamp): Boolean {
+        val latest = latest(path)
+        if (latest != null && latest >= stamp) return false
+        record(path, stamp)
+        return true
+    }
+
+    @Synchronized fun record(path: String, stamp: Stamp) {
+        val stamps = stamps ?: HashMap<String, Stamp>().also { stamps = it }
+        val current = stamps[path]
+        if (current == null || stamp > current) stamps[path] = stamp
+    }
+
+    /**
+     * Gets the stamp of the last write to any property path.
+     */
+    @Synchronized fun newest(): Stamp? = stamps?.values?.max()
+
+    /**
+     * Flattens the stamps to `[path, time, node, path, time, node...]` for INITIALIZE payloads.
+     */
+    @Synchronized fun flatten(): List<Any>? {
+        return stamps?.entries?.flatMap { listOf(it.key, it.value.time, it.value.node) }
+    }
+
+    /**
+     * Records stamps flattened by [flatten].
+     */
+    @Synchronized fun restore(flat: List<*>) {
+        for (i in 0..(flat.size / 3 - 1)) {
+            record(flat[i * 3] as String, Stamp((flat[i * 3 + 1] as Number).toLong(), (flat[i * 3 + 2] as Number).toLong()))
+        }
+    }
+}
+
+/**
+ * Gets the newest of some stamps flattened by [Replica.flatten].
+ */
+internal fun newestOf(flat: List<*>?): Stamp? {
+    var newest: Stamp? = null
+    for (i in 0..((flat?.size ?: 0) / 3 - 1)) {
+        val stamp = Stamp((flat!![i * 3 + 1] as Number).toLong(), (flat[i * 3 + 2] as Number).toLong())
+        if (newest == null || stamp > newest) newest = stamp
+    }
+    return newest
+}
+
+/**
+ * This tracks the [Replica]s of (unwrapped) objects by identity, objects are only tracked once they were changed.
+ */
+internal class Replicas {
+
+    private val byObject = IdentityHashMap<Any, Replica>()
+    private val byKey = ConcurrentHashMap<Long, Any>()
+
+    /**
+     * Gets the replica of an object, it is tracked by the provided key if it isn't already.
+     */
+    fun of(obj: Any, key: Long): Replica = synchronized(byObject) {
+        byObject.getOrPut(obj) { Replica(key).also { byKey[key] = obj } }
+    }
+
+    fun find(obj: Any): Replica? = synchronized(byObject) { byObject[obj] }
+
+    /**
+     * Gets the object tracked by a key.
+     */
+    operator fun get(key: Long?): Any? = if (key == null) null else byKey[key]
+
+    fun forget(obj: Any) {
+        synchronized(byObject) {
+            val replica = byObject.remove(obj) ?: return
+            byKey.remove(replica.key, obj)
+        }
+    }
+}
+
+/**
+ * Resolves a received write to a property path against the local state, [apply] is called with the value to set if the
+ * write wins. Writes without a stamp (from nodes which didn't negotiate [EXT_LWW]) always win.
+ */
+internal inline fun PersistenceManager.resolve(obj: Any, path: String, value: Any?, replica: Replica?, stamp: Stamp?, apply: (Any?) -> Unit) {
+    if (replica == null || stamp == null) return apply(value)
+
+    val merge = if (PATH_SEPARATOR in path) null else mergeFunctions[obj.javaClass to path]
+    if (merge != null) {
+        replica.record(path, stamp)
+        apply(merge.merge(valueAt(obj, path), value))
+    } else if (replica.accept(path, stamp)) {
+        apply(value)
+    } else {
+        logger.trace("Discarding a write to {} which lost to a newer one", path)
+    }
+}
+
+/**
+ * Wraps the contents of a store for an INITIALIZE payload, along with the keys and stamps of the objects which were
+ * changed.
+ */
+internal fun PersistenceManager.initializeWrapper(objects: Collection<Any>, respond: Boolean): InitializeValueWrapper {
+    val array = (objects as Collection<Any?>).toTypedArray()
+    val tracked = array.map { replicas.find(it!!) }
+    if (tracked.all { it == null }) return InitializeValueWrapper(array, respond)
+
+    return InitializeValueWrapper(array, respond, tracked.map { it?.key }, tracked.map { it?.flatten() })
+}
@@ -0,0 +1,335 @@
+package com.austinv11.persistence.internal
+
+import com.austinv11.persistence.PersistenceManager
+import com.austinv11.persistence.Store
+import com.austinv11.persistence.SyncPolicy
+import com.austinv11.persistence.logger
+import kotlinx.coroutines.experimental.CoroutineDispatcher
+import kotlinx.coroutines.experimental.delay
+import kotlinx.coroutines.experimental.launch
+import org.msgpack.core.MessageBufferPacker
+import org.msgpack.core.MessagePack
+import org.msgpack.core.MessageUnpacker
+import java.io.Closeable
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.zip.CRC32
+
+/**
+ * Write-ahead log records are `[length, crc32, op, body]`, where the body is a MessagePack stream.
+ */
+internal const val WAL_HEADER_SIZE = 8
+
+/**
+ * `replaced hash (or nil), block` (see [packBlock]), the block's objects were inserted (replacing the object with the
+ * provided hash, if it was changed).
+ */
+internal const val WAL_PUT = 0
+/**
+ * `type name (or nil), array of hashes`, the objects with the provided hashes were removed.
+ */
+internal const val WAL_REMOVE = 1
+/**
+ * `type name`, the type's store was cleared.
+ */
+internal const val WAL_CLEAR = 2
+
+/**
+ * This appends records to a log file, see [PersistenceManager.setWriteAheadLog]. Records appended by any number of
+ * threads are queued and written (and forced, depending on the [SyncPolicy]) together by a single one of them.
+ */
+internal class WriteAheadLog(val path: Path,
+                             val policy: SyncPolicy,
+                             val intervalMillis: Long,
+                             dispatcher: CoroutineDispatcher) : Closeable {
+
+    /**
+     * The segment holding the records written before the last [checkpoint], until the snapshot covering them is done.
+     */
+    val checkpointPath: Path = path.resolveSibling(path.fileName.toString() + ".old")
+
+    private val lock = Object()
+    private var channel = open(path)
+    private var pending = ArrayList<ByteBuffer>()
+    private var appended = 0L
+    private var written = 0L //Written (and forced, unless the policy is OS)
+    private var writing = false
+    private var failure: IOException? = null
+    @Volatile private var closed = false
+
+    init {
+        if (policy != SyncPolicy.ALWAYS) {
+            launch(dispatcher) {
+                while (!closed) {
+                    delay(intervalMillis)
+                    if (closed) break
+                    try {
+                        flush()
+                    } catch (e: UncheckedIOException) {
+                        logger.error("Unable to write to the write-ahead log {}", path, e.cause)
+                        return@launch
+                    }
+                }
+            }
+        }
+    }
+
+    private fun open(path: Path) = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+
+    /**
+     * Appends a record, it is durable once this returns if the policy is [SyncPolicy.ALWAYS].
+     *
+     * @throws UncheckedIOException If the log can't be written.
+     */
+    fun append(op: Int, body: ByteArray) {
+        val crc = CRC32()
+        crc.update(op)
+        crc.update(body)
+        val record = ByteBuffer.allocate(WAL_HEADER_SIZE + 1 + body.size)
+        record.putInt(body.size + 1).putInt(crc.value.toInt()).put(op.toByte()).put(body).flip()
+
+        val sequence = synchronized(lock) {
+            if (closed) throw IllegalStateException("The write-ahead log $path is closed!")
+            failure?.let { throw UncheckedIOException("The write-ahead log $path failed", it) }
+            pending.add(record)
+            ++appended
+        }
+        if (policy == SyncPolicy.ALWAYS) sync(sequence)
+    }
+
+    /**
+     * Writes every record appended so far.
+     */
+    fun flush() {
+        sync(synchronized(lock) { appended })
+    }
+
+    /**
+     * Waits until the records up to the provided one were written, writing them (along with any others which are
+     * pending) unless another thread is already doing so.
+     */
+    private fun sync(sequence: Long) {
+        while (true) {
+            val (batch, last) = synchronized(lock) {
+                while (writing && written < sequence) lock.wait()
+                failure?.let { throw UncheckedIOException("The write-ahead log $path failed", it) }
+                if (written >= sequence) return
+                writing = true
+                pending.also { pending = ArrayList() } to appended
+            }
+
+            var error: IOException? = null
+            try {
+                write(batch)
+            } catch (e: IOException) {
+                error = e
+            }
+            synchronized(lock) {
+                if (error == null) written = last else failure = error
+                writing = false
+                lock.notifyAll()
+            }
+        }
+    }
+
+    private fun write(batch: List<ByteBuffer>) {
+        if (batch.isEmpty()) return
+        val buffers = batch.toTypedArray()
+        while (buffers.last().hasRemaining()) channel.write(buffers)
+        if (policy != SyncPolicy.OS) channel.force(false)
+    }
+
+    /**
+     * Runs an action while no records are being written, after every pending record was written and forced.
+     */
+    private inline fun <R> exclusive(action: () -> R): R {
+        val batch = synchronized(lock) {
+            while (writing) lock.wait()
+            failure?.let { throw UncheckedIOException("The write-ahead log $path failed", it) }
+            writing = true
+            written = appended
+            pending.also { pending = ArrayList() }
+        }
+        try {
+            try {
+                write(batch)
+                channel.force(false)
+            } catch (e: IOException) {
+                synchronized(lock) { failure = e }
+                throw UncheckedIOException("The write-ahead log $path failed", e)
+            }
+            return action()
+        } finally {
+            synchronized(lock) {
+                writing = false
+                lock.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Moves the records written so far to the [checkpointPath] (appending them to it, if a previous checkpoint wasn't
+     * discarded) and starts a new segment. This is called before writing a snapshot.
+     */
+    fun checkpoint() {
+        exclusive {
+            channel.close()
+            if (Files.exists(checkpointPath)) {
+                FileChannel.open(checkpointPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND).use { target ->
+                    FileChannel.open(path, StandardOpenOption.READ).use { source ->
+                        var position = 0L
+                        while (position < source.size()) position += source.transferTo(position, source.size() - position, target)
+                    }
+                    target.force(false)
+                }
+                Files.delete(path)
+            } else {
+                Files.move(path, checkpointPath)
+            }
+            channel = open(path)
+        }
+    }
+
+    /**
+     * Deletes the records moved by the last [checkpoint], once they are covered by a snapshot.
+     */
+    fun discardCheckpoint() {
+        Files.deleteIfExists(checkpointPath)
+    }
+
+    override fun close() {
+        synchronized(lock) { closed = true }
+        try {
+            exclusive { channel.close() }
+        } catch (e: UncheckedIOException) {
+            channel.close()
+            throw e.cause!!
+        }
+    }
+}
+
+/**
+ * Logs the insertion of objects (or the change of an object, replacing the one with the original hash).
+ */
+internal fun PersistenceManager.logPut(type: Class<*>, objects: Collection<Any>, replaced: Long? = null) {
+    val wal = wal ?: return
+    if (objects.isEmpty()) return
+    wal.append(WAL_PUT, packed {
+        it.insert(replaced, this)
+        packBlock(it, type, objects)
+    })
+}
+
+/**
+ * Logs the insertion of an object which wasn't decoded, without decoding it.
+ */
+internal fun PersistenceManager.logDeferred(entry: Deferred) {
+    val wal = wal ?: return
+    val schema = entry.encoded.schema
+    wal.append(WAL_PUT, packed {
+        it.packNil()
+        it.packString(schema.type!!.name)
+        it.packArrayHeader(schema.names.size)
+        schema.names.forEach { name -> it.packString(name) }
+        it.packInt(1)
+        it.packArrayHeader(entry.encoded.count + 2)
+        it.insert(entry.key, this)
+        it.insert(entry.stamps, this)
+        it.writePayload(entry.encoded.bytes) //Already packed positionally against the schema's names
+    })
+}
+
+/**
+ * Logs the removal of objects.
+ */
+internal fun PersistenceManager.logRemove(type: Class<*>?, hashes: Collection<Long>) {
+    val wal = wal ?: return
+    if (hashes.isEmpty()) return
+    wal.append(WAL_REMOVE, packed {
+        it.insert(type?.name, this)
+        it.packArrayHeader(hashes.size)
+        hashes.forEach { hash -> it.packLong(hash) }
+    })
+}
+
+/**
+ * Logs the clearing of a type's store.
+ */
+internal fun PersistenceManager.logClear(type: Class<*>) {
+    val wal = wal ?: return
+    wal.append(WAL_CLEAR, packed { it.packString(type.name) })
+}
+
+private inline fun packed(action: (MessageBufferPacker) -> Unit): ByteArray {
+    val packer = MessagePack.newDefaultBufferPacker()
+    action(packer)
+    return packer.toByteArray().also { packer.close() }
+}
+
+/**
+ * Quietly applies the records of a write-ahead log (starting with its checkpoint segment, if there is one). A torn or
+ * corrupt record ends the log, it is truncated to the records before it.
+ *
+ * @return The number of records applied.
+ */
+internal fun PersistenceManager.replay(path: Path): Int {
+    val checkpoint = path.resolveSibling(path.fileName.toString() + ".old")
+    return listOf(checkpoint, path).filter { Files.exists(it) }.sumBy { replaySegment(it) }
+}
+
+private fun PersistenceManager.replaySegment(path: Path): Int {
+    var applied = 0
+    FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE).use { channel ->
+        val header = ByteBuffer.allocate(WAL_HEADER_SIZE)
+        var position = 0L
+        while (true) {
+            header.clear()
+            if (channel.read(header, position) < WAL_HEADER_SIZE) break
+            header.flip()
+            val length = header.int
+            val crc = header.int
+            if (length < 1 || position + WAL_HEADER_SIZE + length > channel.size()) break
+
+            val record = ByteBuffer.allocate(length)
+            channel.read(record, position + WAL_HEADER_SIZE)
+            val checksum = CRC32()
+            checksum.update(record.array())
+            if (checksum.value.toInt() != crc) break
+
+            applyRecord(record.get(0).toInt(), MessagePack.newDefaultUnpacker(record.array(), 1, length - 1))
+            applied++
+            position += WAL_HEADER_SIZE + length
+        }
+        if (position < channel.size()) {
+            logger.warn("Truncating the write-ahead log {} at byte {} of {}, the rest is torn or corrupt", path, position, channel.size())
+            channel.truncate(position)
+        }
+    }
+    return applied
+}
+
+private fun PersistenceManager.applyRecord(op: Int, unpacker: MessageUnpacker) {
+    when (op) {
+        WAL_PUT -> {
+            val replaced = (unpacker.unpackAny(this) as Number?)?.toLong()
+            val block = unpackBlock(unpacker) ?: return
+            val store = storeFor(block.type) as Store<Any>
+            replaced?.let { store.removeHashQuietly(it) }
+            block.objects.forEach { store.removeHashQuietly(generateHash(it)) } //Replaced along with its replica
+            insertBlock(block)
+        }
+        WAL_REMOVE -> {
+            val name = unpacker.unpackAny(this) as String?
+            val hashes = (1..unpacker.unpackArrayHeader()).map { unpacker.unpackLong() }
+            val type = name?.let { localType(it) }
+            if (type != null) storeFor(type).removeAllQuietly(hashes) else stores.values.forEach { it.removeAllQuietly(hashes) }
+        }
+        WAL_CLEAR -> localType(unpacker.unpackString())?.let { storeFor(it).clearQuietly() }
+        else -> throw IOException("Unknown write-ahead log record $op!")
+    }
+}
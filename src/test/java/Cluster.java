@@ -0,0 +1,161 @@
+import com.austinv11.persistence.PersistenceManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This boots N nodes in this JVM on loopback, every link between two nodes goes through a {@link FaultyLink}.
+ */
+public class Cluster implements AutoCloseable {
+	
+	public enum Topology {
+		LINE, RING, STAR, MESH;
+		
+		/**
+		 * Gets the links of this topology as (connecting node, accepting node) pairs.
+		 */
+		List<int[]> edges(int nodes) {
+			List<int[]> edges = new ArrayList<>();
+			switch (this) {
+				case LINE:
+				case RING:
+					for (int i = 0; i < nodes - 1; i++)
+						edges.add(new int[]{i, i + 1});
+					if (this == RING && nodes > 2)
+						edges.add(new int[]{nodes - 1, 0});
+					break;
+				case STAR:
+					for (int i = 1; i < nodes; i++)
+						edges.add(new int[]{i, 0});
+					break;
+				case MESH:
+					for (int i = 0; i < nodes; i++)
+						for (int j = i + 1; j < nodes; j++)
+							edges.add(new int[]{i, j});
+					break;
+			}
+			return edges;
+		}
+	}
+	
+	private final int basePort;
+	private final PersistenceManager[] nodes;
+	private final List<int[]> edges;
+	private final Map<int[], FaultyLink> links = new ConcurrentHashMap<>();
+	private final ConvergenceTracker tracker;
+	private volatile long latencyMillis;
+	private volatile long bandwidth;
+	
+	public Cluster(int size, Topology topology, int basePort, ConvergenceTracker tracker) {
+		this.basePort = basePort;
+		this.tracker = tracker;
+		this.nodes = new PersistenceManager[size];
+		this.edges = topology.edges(size);
+		for (int i = 0; i < size; i++) {
+			int degree = degree(i);
+			nodes[i] = new PersistenceManager()
+					.setServerPort(basePort + i)
+					.setSetAllowedConnections(degree + 1); //Room for a reconnect while the old connection is closing
+			nodes[i].setFactory(tracker.factoryFor(i));
+			nodes[i].storeFor(HarnessObject.class); //Also starts the server
+		}
+	}
+	
+	/**
+	 * Sets the latency added to links created after this call.
+	 */
+	public Cluster setLatency(long latency, TimeUnit unit) {
+		this.latencyMillis = unit.toMillis(latency);
+		links.values().forEach(it -> it.setLatency(latency, unit));
+		return this;
+	}
+	
+	/**
+	 * Caps the bandwidth (bytes per second in each direction) of every link, 0 is unlimited.
+	 */
+	public Cluster setBandwidth(long bytesPerSecond) {
+		this.bandwidth = bytesPerSecond;
+		links.values().forEach(it -> it.setBandwidth(bytesPerSecond));
+		return this;
+	}
+	
+	public int size() {
+		return nodes.length;
+	}
+	
+	public PersistenceManager node(int i) {
+		return nodes[i];
+	}
+	
+	public List<int[]> getEdges() {
+		return edges;
+	}
+	
+	/**
+	 * Connects every link of the topology.
+	 */
+	public void connect() throws IOException {
+		for (int[] edge : edges)
+			connect(edge);
+	}
+	
+	/**
+	 * Drops the connection of a link (the nodes aren't told).
+	 */
+	public void drop(int[] edge) {
+		FaultyLink link = links.remove(edge);
+		if (link != null) link.close();
+	}
+	
+	/**
+	 * Connects a link, creating a new connection between its nodes.
+	 */
+	public void connect(int[] edge) throws IOException {
+		FaultyLink link = new FaultyLink(basePort + edge[1])
+				.setLatency(latencyMillis, TimeUnit.MILLISECONDS)
+				.setBandwidth(bandwidth);
+		FaultyLink old = links.put(edge, link);
+		if (old != null) old.close();
+		nodes[edge[0]].connectTo("localhost", link.getPort());
+	}
+	
+	/**
+	 * Simulates a node restarting: its links are dropped, it loses all of its objects and then it reconnects (and
+	 * receives the current state from its peers).
+	 */
+	public void restart(int node) throws IOException, InterruptedException {
+		List<int[]> affected = new ArrayList<>();
+		for (int[] edge : edges) {
+			if (edge[0] == node || edge[1] == node) {
+				drop(edge);
+				affected.add(edge);
+			}
+		}
+		TimeUnit.MILLISECONDS.sleep(200); //Let both sides notice the closed connections
+		
+		tracker.forget(node);
+		nodes[node].invalidate();
+		nodes[node].storeFor(HarnessObject.class);
+		for (int[] edge : affected)
+			connect(edge);
+	}
+	
+	private int degree(int node) {
+		int degree = 0;
+		for (int[] edge : edges)
+			if (edge[0] == node || edge[1] == node) degree++;
+		return degree;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		links.values().forEach(FaultyLink::close);
+		links.clear();
+		for (PersistenceManager node : nodes)
+			node.close();
+	}
+}
@@ -0,0 +1,208 @@
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.Store;
+import com.austinv11.persistence.impl.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This measures end-to-end replication: it boots a cluster in this JVM, drives a write workload against random nodes 
+ * (optionally injecting faults) and reports the write throughput and how long writes took to reach every node.
+ * 
+ * It is configured through system properties, i.e. 
+ * {@code -Dharness.nodes=8 -Dharness.topology=LINE -Dharness.latency=5 -Dharness.restarts=1}:
+ * <ul>
+ *     <li>harness.nodes: The number of nodes (default 5).</li>
+ *     <li>harness.topology: LINE, RING, STAR or MESH (default RING).</li>
+ *     <li>harness.port: The port of the first node, the others use the following ports (default 7100).</li>
+ *     <li>harness.writes: The number of writes (default 2000).</li>
+ *     <li>harness.rate: The number of writes per second, 0 is unthrottled (default 500).</li>
+ *     <li>harness.changes: The fraction of writes which change an existing object rather than create one (default 0.5).</li>
+ *     <li>harness.latency: The latency (in ms) added to every link (default 0).</li>
+ *     <li>harness.bandwidth: The bandwidth cap (in bytes per second in each direction) of every link, 0 is unlimited 
+ *     (default 0).</li>
+ *     <li>harness.drops: The number of times a random link is dropped (and reconnected after a second) during the run 
+ *     (default 0).</li>
+ *     <li>harness.restarts: The number of times a random node is restarted during the run (default 0).</li>
+ *     <li>harness.timeout: How long (in s) to wait for writes to converge after the workload (default 30).</li>
+ *     <li>harness.seed: The seed of the workload (default 42).</li>
+ *     <li>harness.appends: The number of elements nodes 0 and 1 each append to the same list at once after the 
+ *     workload, 0 skips this check (default 200).</li>
+ * </ul>
+ */
+public class ClusterHarness {
+	
+	public static void main(String[] args) throws Exception {
+		int nodes = Integer.getInteger("harness.nodes", 5);
+		Cluster.Topology topology = Cluster.Topology.valueOf(System.getProperty("harness.topology", "RING").toUpperCase());
+		int writes = Integer.getInteger("harness.writes", 2000);
+		int rate = Integer.getInteger("harness.rate", 500);
+		double changes = Double.parseDouble(System.getProperty("harness.changes", "0.5"));
+		int drops = Integer.getInteger("harness.drops", 0);
+		int restarts = Integer.getInteger("harness.restarts", 0);
+		Random random = new Random(Long.getLong("harness.seed", 42));
+		
+		ConvergenceTracker tracker = new ConvergenceTracker(nodes);
+		Cluster cluster = new Cluster(nodes, topology, Integer.getInteger("harness.port", 7100), tracker)
+				.setLatency(Long.getLong("harness.latency", 0), TimeUnit.MILLISECONDS)
+				.setBandwidth(Long.getLong("harness.bandwidth", 0));
+		cluster.connect();
+		awaitConnections(cluster);
+		
+		List<List<IHarnessObject>> objects = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < nodes; i++)
+			objects.add(new CopyOnWriteArrayList<>());
+		int faults = drops + restarts;
+		int faultInterval = faults == 0 ? Integer.MAX_VALUE : writes / (faults + 1);
+		int[] restarting = {-1};
+		
+		System.out.printf("Writing %d objects to %d nodes (%s)...%n", writes, nodes, topology);
+		long start = System.nanoTime();
+		for (int i = 0; i < writes; i++) {
+			if (rate > 0) {
+				long wait = start + TimeUnit.SECONDS.toNanos(i) / rate - System.nanoTime();
+				if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			
+			if (i > 0 && i % faultInterval == 0 && faults > 0) {
+				if (drops > 0) {
+					drops--;
+					List<int[]> edges = cluster.getEdges();
+					int[] edge = edges.get(random.nextInt(edges.size()));
+					System.out.printf("Dropping the link between %d and %d%n", edge[0], edge[1]);
+					cluster.drop(edge);
+					background(() -> {
+						TimeUnit.SECONDS.sleep(1);
+						cluster.connect(edge);
+					});
+				} else {
+					restarts--;
+					int node = random.nextInt(nodes);
+					System.out.printf("Restarting node %d%n", node);
+					restarting[0] = node;
+					objects.get(node).clear();
+					background(() -> {
+						cluster.restart(node);
+						restarting[0] = -1;
+					});
+				}
+				faults--;
+			}
+			
+			int node = random.nextInt(nodes);
+			if (node == restarting[0]) node = (node + 1) % nodes;
+			List<IHarnessObject> owned = objects.get(node);
+			if (!owned.isEmpty() && random.nextDouble() < changes) {
+				IHarnessObject object = owned.get(random.nextInt(owned.size()));
+				object.setValue(tracker.issued(object.getId(), i));
+			} else {
+				owned.add(cluster.node(node).persist(new HarnessObject(i, tracker.issued(i, i))));
+			}
+		}
+		long issued = System.nanoTime() - start;
+		
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Long.getLong("harness.timeout", 30));
+		while (tracker.getPending() > 0 && System.nanoTime() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+		
+		LatencyHistogram convergence = tracker.getConvergence();
+		long converged = tracker.getConverged();
+		double elapsed = (Math.max(tracker.getLastConvergence(), start + issued) - start) / 1e9;
+		System.out.printf("Issued %d writes in %.2fs (%.0f writes/s)%n", writes, issued / 1e9, writes / (issued / 1e9));
+		System.out.printf("Converged %d writes in %.2fs (%.0f writes/s), %d did not converge%n", converged, elapsed, 
+				converged / elapsed, tracker.getPending());
+		System.out.printf("Time to convergence: p50 %.2fms, p99 %.2fms, p99.9 %.2fms, max %.2fms%n",
+				convergence.getPercentile(50.0, TimeUnit.MICROSECONDS) / 1e3, 
+				convergence.getPercentile(99.0, TimeUnit.MICROSECONDS) / 1e3,
+				convergence.getPercentile(99.9, TimeUnit.MICROSECONDS) / 1e3, 
+				convergence.getMax(TimeUnit.MICROSECONDS) / 1e3);
+		for (int i = 0; i < nodes; i++)
+			System.out.printf("Node %d has %d objects and %d connections%n", i, 
+					cluster.node(i).storeFor(HarnessObject.class).size(), cluster.node(i).getConnections().size());
+		
+		int appends = Integer.getInteger("harness.appends", 200);
+		if (appends > 0 && nodes > 1)
+			checkConcurrentAppends(cluster, appends);
+		
+		cluster.close();
+		System.exit(0);
+	}
+	
+	/**
+	 * Appends to the same list from two nodes at once and checks that both end up with every element (the order of 
+	 * concurrent appends may differ between nodes).
+	 */
+	private static void checkConcurrentAppends(Cluster cluster, int appends) throws Exception {
+		cluster.node(0).setCollectionDeltas(true);
+		cluster.node(1).setCollectionDeltas(true);
+		IHarnessObject first = cluster.node(0).persist(new HarnessObject(-1, "appends"));
+		long hash = cluster.node(0).generateHash(first);
+		Store<HarnessObject> store = cluster.node(1).storeFor(HarnessObject.class);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (!store.containsHash(hash) && System.nanoTime() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+		if (!store.containsHash(hash)) {
+			System.out.println("Concurrent appends: the list never reached node 1");
+			return;
+		}
+		IHarnessObject second = cluster.node(1).persist(store.get(hash));
+		
+		Thread[] threads = new Thread[2];
+		IHarnessObject[] copies = {first, second};
+		for (int i = 0; i < threads.length; i++) {
+			IHarnessObject copy = copies[i];
+			String prefix = i + "-";
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < appends; j++)
+					copy.getLog().add(prefix + j);
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		
+		deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Long.getLong("harness.timeout", 30));
+		while ((first.getLog().size() < appends * 2 || second.getLog().size() < appends * 2) && System.nanoTime() < deadline)
+			TimeUnit.MILLISECONDS.sleep(10);
+		List<String> firstLog = new ArrayList<>(first.getLog());
+		List<String> secondLog = new ArrayList<>(second.getLog());
+		Collections.sort(firstLog);
+		Collections.sort(secondLog);
+		System.out.printf("Concurrent appends: node 0 has %d and node 1 has %d of %d elements, %s%n", firstLog.size(), 
+				secondLog.size(), appends * 2, firstLog.equals(secondLog) ? "converged" : "diverged");
+	}
+	
+	private static void awaitConnections(Cluster cluster) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		int expected = cluster.getEdges().size() * 2;
+		while (System.nanoTime() < deadline) {
+			int connections = 0;
+			for (int i = 0; i < cluster.size(); i++)
+				connections += cluster.node(i).getConnections().size();
+			if (connections >= expected) break;
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		TimeUnit.MILLISECONDS.sleep(500); //Let the handshakes complete
+	}
+	
+	private static void background(Task task) {
+		Thread thread = new Thread(() -> {
+			try {
+				task.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@FunctionalInterface
+	private interface Task {
+		void run() throws Exception;
+	}
+}
@@ -0,0 +1,232 @@
+import com.austinv11.persistence.PersistenceManager;
+import com.austinv11.persistence.Store;
+import com.austinv11.persistence.StoreFactory;
+import com.austinv11.persistence.impl.LatencyHistogram;
+import com.austinv11.persistence.impl.LocalStore;
+import kotlin.Pair;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This records when each write becomes visible on each node (by wrapping the nodes' stores) and measures how long it
+ * takes for a write to reach every node.
+ */
+public class ConvergenceTracker {
+	
+	private final int nodes;
+	private final long everyNode;
+	private static final String PREFIX = "write-";
+	
+	private final Map<Integer, Queue<Write>> pending = new ConcurrentHashMap<>();
+	private final LongAdder outstanding = new LongAdder();
+	private final LatencyHistogram convergence = new LatencyHistogram();
+	private final LongAdder converged = new LongAdder();
+	private final AtomicLong lastConvergence = new AtomicLong();
+	
+	public ConvergenceTracker(int nodes) {
+		if (nodes > 63) throw new IllegalArgumentException("At most 63 nodes are supported!");
+		
+		this.nodes = nodes;
+		this.everyNode = (1L << nodes) - 1;
+	}
+	
+	/**
+	 * Called right before a write is made.
+	 * 
+	 * @param id The id of the written object.
+	 * @param sequence The sequence number of the write, this must increase with every write.
+	 * @return The value to write.
+	 */
+	public String issued(int id, int sequence) {
+		Write write = new Write(sequence, System.nanoTime());
+		pending.computeIfAbsent(id, k -> new ConcurrentLinkedQueue<>()).add(write);
+		outstanding.increment();
+		return PREFIX + sequence;
+	}
+	
+	/**
+	 * Called when a node stores an object. This write and any earlier writes to the same object which haven't been seen 
+	 * by the node yet are marked as seen, since the object's state now includes them.
+	 */
+	public void arrived(int node, Object object) {
+		if (!(object instanceof IHarnessObject)) return;
+		
+		IHarnessObject harnessObject = (IHarnessObject) object;
+		String value = harnessObject.getValue();
+		Queue<Write> writes = pending.get(harnessObject.getId());
+		if (writes == null || value == null || !value.startsWith(PREFIX)) return;
+		
+		int sequence = Integer.parseInt(value.substring(PREFIX.length()));
+		long now = System.nanoTime();
+		for (Write write : writes) {
+			if (write.sequence > sequence) continue;
+			
+			long seen = write.seen.accumulateAndGet(1L << node, (a, b) -> a | b);
+			if (seen == everyNode && writes.remove(write)) {
+				convergence.record(now - write.start);
+				converged.increment();
+				outstanding.decrement();
+				lastConvergence.accumulateAndGet(now, Math::max);
+			}
+		}
+	}
+	
+	/**
+	 * Forgets that a node saw pending writes (i.e. because it restarted and lost them).
+	 */
+	public void forget(int node) {
+		pending.values().forEach(writes -> writes.forEach(it -> it.seen.accumulateAndGet(~(1L << node), (a, b) -> a & b)));
+	}
+	
+	public LatencyHistogram getConvergence() {
+		return convergence;
+	}
+	
+	public long getConverged() {
+		return converged.sum();
+	}
+	
+	public long getPending() {
+		return outstanding.sum();
+	}
+	
+	/**
+	 * The System#nanoTime when the last write converged.
+	 */
+	public long getLastConvergence() {
+		return lastConvergence.get();
+	}
+	
+	/**
+	 * Creates a store factory for the provided node which reports the writes it sees to this tracker.
+	 */
+	public StoreFactory factoryFor(int node) {
+		if (node >= nodes) throw new IndexOutOfBoundsException("Unknown node " + node);
+		
+		return new StoreFactory() {
+			@Override
+			public <T> Store<T> buildStore(PersistenceManager manager, Class<T> type) {
+				return new RecordingStore<>(node, new LocalStore<>(manager));
+			}
+		};
+	}
+	
+	private static final class Write {
+		
+		final int sequence;
+		final long start;
+		final AtomicLong seen = new AtomicLong();
+		
+		Write(int sequence, long start) {
+			this.sequence = sequence;
+			this.start = start;
+		}
+	}
+	
+	private final class RecordingStore<T> implements Store<T> {
+		
+		private final int node;
+		private final Store<T> backing;
+		
+		RecordingStore(int node, Store<T> backing) {
+			this.node = node;
+			this.backing = backing;
+		}
+		
+		@Override
+		public T insert(T obj) {
+			T previous = backing.insert(obj);
+			arrived(node, obj);
+			return previous;
+		}
+		
+		@Override
+		public T insertQuietly(T obj) {
+			T previous = backing.insertQuietly(obj);
+			arrived(node, obj);
+			return previous;
+		}
+		
+		@Override
+		public boolean remove(T obj) {
+			return backing.remove(obj);
+		}
+		
+		@Override
+		public boolean removeHash(long hash) {
+			return backing.removeHash(hash);
+		}
+		
+		@Override
+		public boolean removeQuietly(T obj) {
+			return backing.removeQuietly(obj);
+		}
+		
+		@Override
+		public boolean removeHashQuietly(long hash) {
+			return backing.removeHashQuietly(hash);
+		}
+		
+		@Override
+		public boolean contains(T obj) {
+			return backing.contains(obj);
+		}
+		
+		@Override
+		public boolean containsHash(long hash) {
+			return backing.containsHash(hash);
+		}
+		
+		@Override
+		public T get(long hash) {
+			return backing.get(hash);
+		}
+		
+		@Override
+		public T update(long originalHash, T obj, Pair<Class<?>, String> hint) throws NoSuchElementException {
+			T previous = backing.update(originalHash, obj, hint);
+			arrived(node, obj);
+			return previous;
+		}
+		
+		@Override
+		public T updateQuietly(long originalHash, T obj) throws NoSuchElementException {
+			T previous = backing.updateQuietly(originalHash, obj);
+			arrived(node, obj);
+			return previous;
+		}
+		
+		@Override
+		public int size() {
+			return backing.size();
+		}
+		
+		@Override
+		public void clear() {
+			backing.clear();
+		}
+		
+		@Override
+		public void clearQuietly() {
+			backing.clearQuietly();
+		}
+		
+		@Override
+		public Collection<T> collect() {
+			return backing.collect();
+		}
+		
+		@Override
+		public Iterator<T> iterator() {
+			return backing.iterator();
+		}
+	}
+}
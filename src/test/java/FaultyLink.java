@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This is a TCP proxy on loopback which injects faults into the link between two nodes: added (one way) latency, a
+ * bandwidth cap (per direction) and dropping the connection.
+ */
+public class FaultyLink implements AutoCloseable {
+	
+	private static final int CHUNK = 16 * 1024;
+	
+	private final ServerSocket server;
+	private final int target;
+	private volatile long latencyNanos;
+	private volatile long bytesPerSecond;
+	private volatile Socket inbound, outbound;
+	private volatile boolean closed;
+	
+	/**
+	 * @param target The port of the node connections are forwarded to.
+	 */
+	public FaultyLink(int target) throws IOException {
+		this.server = new ServerSocket(0);
+		this.target = target;
+		Thread acceptor = new Thread(this::accept, "Link to " + target);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	/**
+	 * The port nodes should connect to instead of the target.
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+	
+	public FaultyLink setLatency(long latency, TimeUnit unit) {
+		this.latencyNanos = unit.toNanos(latency);
+		return this;
+	}
+	
+	/**
+	 * Caps the throughput of each direction, 0 is unlimited.
+	 */
+	public FaultyLink setBandwidth(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		return this;
+	}
+	
+	/**
+	 * Abruptly closes the current connection (the link keeps accepting new ones).
+	 */
+	public void drop() {
+		closeQuietly(inbound);
+		closeQuietly(outbound);
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		drop();
+		try {
+			server.close();
+		} catch (IOException ignored) {}
+	}
+	
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket in = server.accept();
+				Socket out = new Socket("localhost", target);
+				in.setTcpNoDelay(true);
+				out.setTcpNoDelay(true);
+				inbound = in;
+				outbound = out;
+				pump(in, out);
+				pump(out, in);
+			} catch (IOException e) {
+				if (!closed) e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Forwards one direction, chunks are read as soon as they arrive and written once their latency has elapsed so 
+	 * latency doesn't limit throughput.
+	 */
+	private void pump(Socket from, Socket to) {
+		BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+		Thread reader = new Thread(() -> {
+			try (InputStream input = from.getInputStream()) {
+				byte[] buffer = new byte[CHUNK];
+				int read;
+				while ((read = input.read(buffer)) >= 0) {
+					byte[] bytes = new byte[read];
+					System.arraycopy(buffer, 0, bytes, 0, read);
+					queue.put(new Chunk(System.nanoTime() + latencyNanos, bytes));
+				}
+			} catch (IOException | InterruptedException ignored) {
+			} finally {
+				queue.add(Chunk.EOF);
+			}
+		});
+		Thread writer = new Thread(() -> {
+			try (OutputStream output = to.getOutputStream()) {
+				Chunk chunk;
+				while ((chunk = queue.take()) != Chunk.EOF) {
+					long wait = chunk.due - System.nanoTime();
+					if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+					long cap = bytesPerSecond;
+					if (cap > 0) TimeUnit.NANOSECONDS.sleep(TimeUnit.SECONDS.toNanos(chunk.bytes.length) / cap);
+					output.write(chunk.bytes);
+				}
+			} catch (IOException | InterruptedException ignored) {
+			} finally {
+				closeQuietly(from);
+				closeQuietly(to);
+			}
+		});
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		if (socket == null) return;
+		try {
+			socket.close();
+		} catch (IOException ignored) {}
+	}
+	
+	private static final class Chunk {
+		
+		static final Chunk EOF = new Chunk(0, new byte[0]);
+		
+		final long due;
+		final byte[] bytes;
+		
+		Chunk(long due, byte[] bytes) {
+			this.due = due;
+			this.bytes = bytes;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+import java.util.ArrayList;
+import java.util.List;
+
+public class HarnessObject implements IHarnessObject {
+	
+	private volatile int id;
+	private volatile String value;
+	private volatile List<String> log = new ArrayList<>();
+	
+	public HarnessObject() {}
+	
+	public HarnessObject(int id, String value) {
+		this.id = id;
+		this.value = value;
+	}
+	
+	@Override
+	public int getId() {
+		return id;
+	}
+	
+	@Override
+	public void setId(int id) {
+		this.id = id;
+	}
+	
+	@Override
+	public String getValue() {
+		return value;
+	}
+	
+	@Override
+	public void setValue(String value) {
+		this.value = value;
+	}
+	
+	@Override
+	public List<String> getLog() {
+		return log;
+	}
+	
+	@Override
+	public void setLog(List<String> log) {
+		this.log = log;
+	}
+	
+	@Override
+	public int hashCode() {
+		return id; //Stable across changes so the hash only changes with the id
+	}
+}
@@ -0,0 +1,22 @@
+import java.util.List;
+
+/**
+ * The objects written by the {@link ClusterHarness}, their value identifies the write which last set it.
+ */
+public interface IHarnessObject {
+	
+	int getId();
+	
+	void setId(int id);
+	
+	String getValue();
+	
+	void setValue(String value);
+	
+	/**
+	 * Appended to by the concurrent append check.
+	 */
+	List<String> getLog();
+	
+	void setLog(List<String> log);
+}